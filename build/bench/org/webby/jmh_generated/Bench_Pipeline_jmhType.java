@@ -0,0 +1,4 @@
+package org.webby.jmh_generated;
+public class Bench_Pipeline_jmhType extends Bench_Pipeline_jmhType_B3 {
+}
+
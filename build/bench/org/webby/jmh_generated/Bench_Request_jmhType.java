@@ -0,0 +1,4 @@
+package org.webby.jmh_generated;
+public class Bench_Request_jmhType extends Bench_Request_jmhType_B3 {
+}
+
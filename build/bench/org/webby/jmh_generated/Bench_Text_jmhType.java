@@ -0,0 +1,4 @@
+package org.webby.jmh_generated;
+public class Bench_Text_jmhType extends Bench_Text_jmhType_B3 {
+}
+
@@ -0,0 +1,148 @@
+package org.webby;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Bench holds the JMH micro benchmarks of Escaper, of WebRequestImpl accessors
+ * and of the request pipeline (one per response type), see build.xml target "bench".
+ * Each benchmark runs in its own forked JVM; the result is the average time per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Bench {
+
+	@State(Scope.Thread)
+	public static class Text {
+
+		String clean = "The quick brown fox jumps over the lazy dog, 1234567890";
+		String dirty = "<a href=\"/search?q=fox&lang=en\">The \"quick\" fox</a> & the 'lazy' dog";
+		StringWriter out = new StringWriter(256);
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Request {
+
+		HttpServletRequest httpRequest;
+
+		@Setup
+		public void setup() {
+			Map<String, String> params = new HashMap<>();
+			params.put("name", "webby");
+			params.put("page", "17");
+			params.put("debug", "true");
+			Cookie[] cookies = { new Cookie("a", "1"), new Cookie("session", "abc"), new Cookie("theme", "dark") };
+			httpRequest = MockHttp.request("GET", "/bench", params, Collections.emptyMap(), cookies);
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class Pipeline {
+
+		// same as BenchApp.PATHS, annotation values must be constants
+		@Param({ "/template", "/json", "/content", "/download", "/redirect", "/error", "/static/app.css" })
+		String path;
+
+		WebbyServlet servlet;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			servlet = BenchApp.startServlet(Collections.emptyMap());
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			servlet.destroy();
+		}
+
+	}
+
+	@Benchmark
+	public String escapeHtmlClean(Text text) {
+		return Escaper.escapeHtml(text.clean);
+	}
+
+	@Benchmark
+	public String escapeHtmlDirty(Text text) {
+		return Escaper.escapeHtml(text.dirty);
+	}
+
+	@Benchmark
+	public String escapeJsClean(Text text) {
+		return Escaper.escapeJs(text.clean);
+	}
+
+	@Benchmark
+	public String escapeJsDirty(Text text) {
+		return Escaper.escapeJs(text.dirty);
+	}
+
+	@Benchmark
+	public void escapeHtmlWriterDirty(Text text, Blackhole blackhole) throws Exception {
+		text.out.getBuffer().setLength(0);
+		Escaper.escapeHtml(text.dirty, text.out);
+		blackhole.consume(text.out);
+	}
+
+	@Benchmark
+	public String requestGetParameter(Request request) {
+		return new WebRequestImpl("GET", "/bench", request.httpRequest).getParameter("name");
+	}
+
+	@Benchmark
+	public Integer requestGetIntParameter(Request request) {
+		return new WebRequestImpl("GET", "/bench", request.httpRequest).getIntParameter("page");
+	}
+
+	@Benchmark
+	public boolean requestGetBooleanParameter(Request request) {
+		return new WebRequestImpl("GET", "/bench", request.httpRequest).getBooleanParameter("debug", false);
+	}
+
+	@Benchmark
+	public String requestGetCookieValue(Request request) {
+		return new WebRequestImpl("GET", "/bench", request.httpRequest).getCookieValue("theme");
+	}
+
+	@Benchmark
+	public void requestModel(Request request, Blackhole blackhole) {
+		WebRequestImpl req = new WebRequestImpl("GET", "/bench", request.httpRequest);
+		req.putModel("a", 1);
+		req.putModel("b", 2);
+		blackhole.consume(req.getModel("a"));
+	}
+
+	@Benchmark
+	public void servlet(Pipeline pipeline, Blackhole blackhole) throws Exception {
+		MockHttp.Response response = new MockHttp.Response();
+		pipeline.servlet.doGet(MockHttp.request("GET", pipeline.path, Collections.emptyMap(), Collections.emptyMap(), null), response.httpResponse);
+		blackhole.consume(response);
+	}
+
+}
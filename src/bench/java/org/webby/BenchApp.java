@@ -0,0 +1,113 @@
+package org.webby;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BenchApp serves one route per response type, for Bench and LoadTest,
+ * and a static asset from the directory "static".
+ */
+public class BenchApp implements App {
+
+	static final String[] PATHS = { "/template", "/json", "/content", "/download", "/redirect", "/error", "/static/app.css" };
+
+	private static final String TEMPLATE = "<html><head><title>$title</title></head><body>\n"
+			+ "<ul>#foreach($item in $items)<li>$Escaper.escapeHtml($item.name): $item.price</li>\n#end</ul>\n"
+			+ "</body></html>\n";
+	private static final String JSON = "{\"id\":42,\"name\":\"Webby\",\"tags\":[\"a\",\"b\",\"c\"],\"active\":true}";
+
+	private final List<Map<String, Object>> items = new ArrayList<>();
+
+	public BenchApp(AppContext context) {
+		for (int i = 0; i < 50; i++) {
+			Map<String, Object> item = new HashMap<>();
+			item.put("name", i % 10 == 0 ? "item <" + i + "> & more" : "item " + i);
+			item.put("price", i * 1.5);
+			items.add(item);
+		}
+		File downloadFile = new File(context.getRealPath("/download.bin"));
+		Router router = context.getRouter();
+		router.get("/template", req -> {
+			req.putModel("title", "Bench");
+			req.putModel("items", items);
+			req.setTemplate("bench.vm");
+		});
+		router.get("/json", req -> req.setJson(JSON));
+		router.get("/content", req -> req.setTextContent("hello, world"));
+		router.get("/download", req -> req.setDownload(downloadFile, "download.bin", "application/octet-stream", true, false));
+		router.get("/redirect", req -> req.setRedirect("/json"));
+		router.get("/error", req -> req.setError(404, "not found"));
+		// not load tested, see LoadTest.checkMethods
+		router.put("/content", req -> req.setTextContent("put"));
+		router.route("*", "/method", req -> req.setTextContent(req.getMethod()));
+	}
+
+	@Override
+	public void serve(WebRequest req) {
+		req.setError(404, "no route");
+	}
+
+	@Override
+	public void destroy() {
+	}
+
+	/**
+	 * Creates a temporary webapp directory with the bench template, download file and static asset,
+	 * and returns an initialized WebbyServlet running this app.
+	 */
+	static WebbyServlet startServlet(Map<String, String> initParams) throws Exception {
+		File webappDir = createWebapp();
+		WebbyServlet servlet = new WebbyServlet();
+		servlet.init(MockHttp.config(withDefaults(initParams), webappDir));
+		return servlet;
+	}
+
+	/**
+	 * Creates a temporary webapp directory like <code>startServlet</code>, and returns
+	 * a started WebbyServer running this app on an ephemeral port.
+	 */
+	static WebbyServer startServer(Map<String, String> initParams) throws Exception {
+		WebbyServer server = new WebbyServer(0, BenchApp.class.getName(), createWebapp());
+		for (Map.Entry<String, String> e : withDefaults(initParams).entrySet()) {
+			server.setInitParameter(e.getKey(), e.getValue());
+		}
+		server.start();
+		return server;
+	}
+
+	private static File createWebapp() throws IOException {
+		File webappDir = Files.createTempDirectory("webby-bench").toFile();
+		File templateDir = new File(webappDir, "WEB-INF/templates");
+		templateDir.mkdirs();
+		write(new File(templateDir, "bench.vm"), TEMPLATE.getBytes(StandardCharsets.UTF_8));
+		write(new File(webappDir, "download.bin"), new byte[64 * 1024]);
+		File staticDir = new File(webappDir, "static");
+		staticDir.mkdirs();
+		StringBuilder css = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			css.append(".item-").append(i).append(" { margin: ").append(i % 8).append("px; }\n");
+		}
+		write(new File(staticDir, "app.css"), css.toString().getBytes(StandardCharsets.UTF_8));
+		return webappDir;
+	}
+
+	private static Map<String, String> withDefaults(Map<String, String> initParams) {
+		Map<String, String> params = new HashMap<>(initParams);
+		params.put("appClass", BenchApp.class.getName());
+		params.putIfAbsent("velocityCache", "true");
+		params.putIfAbsent("staticPath", "/static");
+		return params;
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		Files.write(file.toPath(), data);
+		file.deleteOnExit();
+	}
+
+}
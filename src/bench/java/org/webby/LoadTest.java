@@ -0,0 +1,155 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadTest runs BenchApp on a WebbyServer on an ephemeral port and drives it over HTTP
+ * from several threads, reporting throughput and latency percentiles per path,
+ * see build.xml target "loadtest". Each thread sends requests on a keep-alive connection
+ * in a closed loop, rotating through the paths. Client and server share the machine,
+ * so the numbers are end-to-end, including the client.
+ * Each dispatch mode (init parameter dispatch) is run on a server of its own, one after the other,
+ * to compare serving on virtual threads with serving on the request threads.
+ * System properties: load.threads (default 8), load.seconds (default 10), load.paths
+ * (comma separated, default all BenchApp paths), load.dispatch (comma separated, default
+ * "container,virtual", or "container" before JDK 21), load.dispatchConcurrency (optional).
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("load.threads", 8);
+		long seconds = Long.getLong("load.seconds", 10);
+		String pathsProperty = System.getProperty("load.paths");
+		String[] paths = pathsProperty != null ? pathsProperty.split(",") : BenchApp.PATHS;
+		String[] dispatches = System.getProperty("load.dispatch", Runtime.version().feature() >= 21 ? "container,virtual" : "container").split(",");
+		String dispatchConcurrency = System.getProperty("load.dispatchConcurrency");
+		// keep one connection per thread alive (the default is 5 per host)
+		System.setProperty("http.maxConnections", String.valueOf(threads));
+		List<String> summaries = new ArrayList<>();
+		for (String dispatch : dispatches) {
+			Map<String, String> initParams = new HashMap<>();
+			initParams.put("dispatch", dispatch);
+			if (dispatchConcurrency != null && dispatch.equals("virtual")) {
+				initParams.put("dispatchConcurrency", dispatchConcurrency);
+			}
+			System.out.println("dispatch " + dispatch);
+			summaries.add(String.format("%-10s %s", dispatch, run(initParams, paths, threads, seconds)));
+		}
+		if (summaries.size() > 1) {
+			for (String summary : summaries) {
+				System.out.println(summary);
+			}
+		}
+	}
+
+	/**
+	 * Runs the load test against a server with the given init parameters, prints the results
+	 * per path and returns the summary.
+	 */
+	private static String run(Map<String, String> initParams, String[] paths, int threads, long seconds) throws Exception {
+		WebbyServer server = BenchApp.startServer(initParams);
+		try {
+			String base = "http://localhost:" + server.getPort();
+			checkMethods(base);
+			// warm up for a fifth of the time, then measure
+			run(base, paths, threads, Math.max(1, seconds / 5) * 1000L, new Histogram[paths.length], new LongAdder());
+			Histogram[] histograms = new Histogram[paths.length];
+			for (int i = 0; i < paths.length; i++) {
+				histograms[i] = new Histogram();
+			}
+			LongAdder errors = new LongAdder();
+			long t1 = System.nanoTime();
+			run(base, paths, threads, seconds * 1000L, histograms, errors);
+			double elapsed = (System.nanoTime() - t1) / 1e9;
+			long total = 0;
+			System.out.println(String.format("%-16s %10s %10s %10s %10s %10s", "path", "requests", "req/s", "p50 us", "p99 us", "max us"));
+			for (int i = 0; i < paths.length; i++) {
+				Histogram h = histograms[i];
+				total += h.getCount();
+				System.out.println(String.format("%-16s %10d %10.0f %10d %10d %10d", paths[i], h.getCount(), h.getCount() / elapsed, h.getPercentile(50), h.getPercentile(99), h.getMax()));
+			}
+			String summary = String.format("%d threads, %d requests in %.1f s: %.0f req/s, %d errors", threads, total, elapsed, total / elapsed, errors.sum());
+			System.out.println(summary);
+			return summary;
+		} finally {
+			server.stop(1);
+		}
+	}
+
+	private static void run(String base, String[] paths, int threads, long millis, Histogram[] histograms, LongAdder errors) throws InterruptedException {
+		long end = System.nanoTime() + millis * 1_000_000L;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int offset = t;
+			Thread worker = new Thread(() -> {
+				byte[] buf = new byte[16 * 1024];
+				for (int i = offset; System.nanoTime() < end; i++) {
+					int index = i % paths.length;
+					long t1 = System.nanoTime();
+					try {
+						if (get(base + paths[index], buf) >= 500) {
+							errors.increment();
+						}
+					} catch (IOException ex) {
+						errors.increment();
+					}
+					if (histograms[index] != null) {
+						histograms[index].record((System.nanoTime() - t1) / 1000L);
+					}
+				}
+			}, "webby-load-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	/**
+	 * Checks that routes for methods other than GET and POST are reached, through the servlet to the Router.
+	 */
+	private static void checkMethods(String base) throws IOException {
+		String[][] checks = { { "PUT", "/content", "put" }, { "DELETE", "/method", "DELETE" }, { "PUT", "/method", "PUT" } };
+		for (String[] check : checks) {
+			HttpURLConnection connection = (HttpURLConnection) new URL(base + check[1]).openConnection();
+			connection.setRequestMethod(check[0]);
+			int status = connection.getResponseCode();
+			String body;
+			try (InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+				body = in != null ? new String(in.readAllBytes(), StandardCharsets.UTF_8) : "";
+			}
+			if (status != 200 || !body.equals(check[2])) {
+				throw new IllegalStateException(check[0] + " " + check[1] + " did not reach its route: status " + status + ", body \"" + body + "\"");
+			}
+		}
+	}
+
+	/**
+	 * Sends a GET request and reads the whole body, so that the connection can be reused.
+	 */
+	private static int get(String url, byte[] buf) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setInstanceFollowRedirects(false);
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (in != null) {
+			try (InputStream body = in) {
+				while (body.read(buf) >= 0) {
+					// discard
+				}
+			}
+		}
+		return status;
+	}
+
+}
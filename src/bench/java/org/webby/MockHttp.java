@@ -0,0 +1,194 @@
+package org.webby;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * MockHttp creates minimal servlet objects, so that a WebbyServlet can be
+ * benchmarked without a container. Methods that are not needed return null (or 0, false).
+ */
+class MockHttp {
+
+	/**
+	 * Returns a ServletConfig whose context maps real paths into webappDir.
+	 */
+	static ServletConfig config(Map<String, String> initParams, File webappDir) {
+		ServletContext servletContext = proxy(ServletContext.class, (method, args) -> {
+			switch (method) {
+				case "getRealPath":
+					return new File(webappDir, (String) args[0]).getPath();
+				case "getContextPath":
+					return "";
+				default:
+					return null;
+			}
+		});
+		return proxy(ServletConfig.class, (method, args) -> {
+			switch (method) {
+				case "getServletContext":
+					return servletContext;
+				case "getInitParameter":
+					return initParams.get(args[0]);
+				case "getInitParameterNames":
+					return Collections.enumeration(initParams.keySet());
+				case "getServletName":
+					return "webby";
+				default:
+					return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns a GET or POST request for a path, with single valued parameters and headers.
+	 */
+	static HttpServletRequest request(String httpMethod, String path, Map<String, String> params, Map<String, String> headers, Cookie[] cookies) {
+		Map<String, Object> attributes = new HashMap<>();
+		return proxy(HttpServletRequest.class, (method, args) -> {
+			switch (method) {
+				case "getMethod":
+					return httpMethod;
+				case "getPathInfo":
+				case "getRequestURI":
+					return path;
+				case "getContextPath":
+				case "getServletPath":
+					return "";
+				case "getParameter":
+					return params.get(args[0]);
+				case "getParameterValues": {
+					String value = params.get(args[0]);
+					return value != null ? new String[] { value } : null;
+				}
+				case "getParameterMap": {
+					Map<String, String[]> map = new HashMap<>();
+					params.forEach((k, v) -> map.put(k, new String[] { v }));
+					return map;
+				}
+				case "getParameterNames":
+					return Collections.enumeration(params.keySet());
+				case "getHeader":
+					return headers.get(args[0]);
+				case "getHeaders": {
+					String value = headers.get(args[0]);
+					return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.emptyList());
+				}
+				case "getDateHeader":
+					return -1L;
+				case "getCookies":
+					return cookies;
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				default:
+					return null;
+			}
+		});
+	}
+
+	/**
+	 * A response that discards its body, but counts it.
+	 */
+	static class Response {
+
+		int status = 200;
+		long bytes = 0;
+		final Map<String, String> headers = new HashMap<>();
+		final HttpServletResponse httpResponse;
+
+		Response() {
+			ServletOutputStream out = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) {
+					bytes++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					bytes += len;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setWriteListener(WriteListener writeListener) {
+				}
+			};
+			this.httpResponse = proxy(HttpServletResponse.class, (method, args) -> {
+				switch (method) {
+					case "setStatus":
+					case "sendError":
+						status = (Integer) args[0];
+						return null;
+					case "getStatus":
+						return status;
+					case "sendRedirect":
+						status = 302;
+						headers.put("Location", (String) args[0]);
+						return null;
+					case "setHeader":
+					case "addHeader":
+					case "setDateHeader":
+					case "setIntHeader":
+						headers.put((String) args[0], String.valueOf(args[1]));
+						return null;
+					case "setContentType":
+						headers.put("Content-Type", (String) args[0]);
+						return null;
+					case "getHeader":
+						return headers.get(args[0]);
+					case "containsHeader":
+						return headers.containsKey(args[0]);
+					case "getOutputStream":
+						return out;
+					default:
+						return null;
+				}
+			});
+		}
+	}
+
+	private interface Answer {
+		Object invoke(String method, Object[] args) throws Exception;
+	}
+
+	private static <T> T proxy(Class<T> type, Answer answer) {
+		Object proxy = Proxy.newProxyInstance(MockHttp.class.getClassLoader(), new Class<?>[] { type }, (p, method, args) -> {
+			Object result = answer.invoke(method.getName(), args);
+			if (result == null && method.getReturnType().isPrimitive()) {
+				return defaultValue(method.getReturnType());
+			}
+			return result;
+		});
+		return type.cast(proxy);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+}
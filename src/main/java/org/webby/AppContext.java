@@ -30,4 +30,24 @@ public interface AppContext {
 	 */
 	String getInitParameter(String name);
 
+	/**
+	 * Returns the router. Routes registered here are matched before
+	 * a request is passed to <code>App.serve</code>.
+	 */
+	Router getRouter();
+
+	/**
+	 * Returns the event hub, which broadcasts server-sent events to
+	 * connections opened with <code>WebRequest.setEvents</code>.
+	 */
+	EventHub getEventHub();
+
+	/**
+	 * Sets (or overwrites) a global template variable that is visible in all templates,
+	 * unless a model attribute with the same name hides it.
+	 * Globals must be set at startup, typically in the App constructor.
+	 * The global "Escaper" is predefined and refers to the <code>Escaper</code> class.
+	 */
+	void putGlobal(String key, Object value);
+
 }
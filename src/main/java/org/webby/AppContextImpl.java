@@ -1,12 +1,17 @@
 package org.webby;
 
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.servlet.ServletContext;
 
 public class AppContextImpl implements AppContext {
 
 	private final ServletContext servletContext;
+	private final Router router = new Router();
+	private final EventHub eventHub = new EventHub();
+	private final Map<String, Object> globals = new HashMap<>();
 
 	public AppContextImpl(ServletContext servletContext) {
 		super();
@@ -33,4 +38,23 @@ public class AppContextImpl implements AppContext {
 		return servletContext.getInitParameter(name);
 	}
 
+	@Override
+	public Router getRouter() {
+		return router;
+	}
+
+	@Override
+	public EventHub getEventHub() {
+		return eventHub;
+	}
+
+	@Override
+	public void putGlobal(String key, Object value) {
+		globals.put(key, value);
+	}
+
+	public Map<String, Object> getGlobals() {
+		return globals;
+	}
+
 }
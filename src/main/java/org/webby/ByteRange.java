@@ -0,0 +1,79 @@
+package org.webby;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A ByteRange is a single range of a HTTP "Range: bytes=..." header.
+ * Start and end are inclusive, as in the header.
+ */
+class ByteRange {
+
+	final long start;
+	final long end;
+
+	ByteRange(long start, long end) {
+		super();
+		this.start = start;
+		this.end = end;
+	}
+
+	long getLength() {
+		return end - start + 1;
+	}
+
+	String toContentRange(long totalLength) {
+		return "bytes " + start + "-" + end + "/" + totalLength;
+	}
+
+	/**
+	 * Parses a Range header for a resource of the given length.
+	 * Returns null if the header is malformed (it must then be ignored),
+	 * or an empty list if no range is satisfiable.
+	 */
+	static List<ByteRange> parse(String header, long totalLength) {
+		if (!header.startsWith("bytes=")) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : header.substring(6).split(",")) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start;
+			long end;
+			try {
+				if (first.isEmpty()) {
+					// suffix range, e.g. "-500" for the last 500 bytes
+					long suffix = Long.parseLong(last);
+					if (suffix <= 0) {
+						continue;
+					}
+					start = Math.max(0, totalLength - suffix);
+					end = totalLength - 1;
+				} else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (end < start) {
+						return null;
+					}
+					end = Math.min(end, totalLength - 1);
+				}
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+			if (start < 0) {
+				return null;
+			}
+			if (start < totalLength && start <= end) {
+				ranges.add(new ByteRange(start, end));
+			}
+		}
+		return ranges;
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compression decides whether a response body is compressed
+ * and wraps the response stream accordingly.
+ */
+class Compression {
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	static final String DEFAULT_TYPES = "text/html,text/plain,text/css,text/csv,text/javascript,application/javascript,application/json,application/xml,image/svg+xml";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final int minSize;
+	private final Set<String> types = new HashSet<>();
+
+	Compression(int minSize, String types) {
+		super();
+		this.minSize = minSize;
+		for (String type : types.split(",")) {
+			type = type.trim().toLowerCase(Locale.ROOT);
+			if (!type.isEmpty()) {
+				this.types.add(type);
+			}
+		}
+	}
+
+	/**
+	 * Returns the content encoding to use for a response body,
+	 * or null if the body should not be compressed.
+	 * The length may be -1 if unknown.
+	 */
+	String chooseEncoding(HttpServletRequest httpRequest, String contentType, long length) {
+		if (length >= 0 && length < minSize) {
+			return null;
+		}
+		if (contentType == null || !types.contains(mimeType(contentType))) {
+			return null;
+		}
+		if (accepts(httpRequest, GZIP)) {
+			return GZIP;
+		}
+		if (accepts(httpRequest, DEFLATE)) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a stream that compresses into the response stream, or the response stream if encoding is null.
+	 * A compressing stream must be finished with <code>finish</code>.
+	 */
+	OutputStream open(HttpServletResponse httpResponse, String encoding) throws IOException {
+		httpResponse.addHeader("Vary", "Accept-Encoding");
+		if (encoding == null) {
+			return httpResponse.getOutputStream();
+		}
+		httpResponse.setHeader("Content-Encoding", encoding);
+		if (encoding.equals(GZIP)) {
+			return new GzipStream(httpResponse.getOutputStream());
+		}
+		return new DeflateStream(httpResponse.getOutputStream());
+	}
+
+	/**
+	 * Writes all remaining compressed data, but does not close the response stream.
+	 * The deflater of a compressing stream is ended, so its native memory is freed now,
+	 * not when it is garbage collected.
+	 */
+	static void finish(OutputStream out) throws IOException {
+		if (!(out instanceof DeflaterOutputStream)) {
+			out.flush();
+			return;
+		}
+		try {
+			((DeflaterOutputStream) out).finish();
+			out.flush();
+		} finally {
+			if (out instanceof GzipStream) {
+				((GzipStream) out).end();
+			} else if (out instanceof DeflateStream) {
+				((DeflateStream) out).end();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the request accepts a content encoding. An entry for the encoding
+	 * itself takes precedence over "*", e.g. "*;q=1, gzip;q=0" does not accept gzip.
+	 */
+	static boolean accepts(HttpServletRequest httpRequest, String encoding) {
+		String header = httpRequest.getHeader("Accept-Encoding");
+		if (header == null) {
+			return false;
+		}
+		double wildcard = -1;
+		for (String item : header.split(",")) {
+			String[] params = item.split(";");
+			String name = params[0].trim();
+			if (name.equalsIgnoreCase(encoding)) {
+				return quality(params) > 0;
+			} else if (name.equals("*")) {
+				wildcard = quality(params);
+			}
+		}
+		return wildcard > 0;
+	}
+
+	private static double quality(String[] params) {
+		for (int i = 1; i < params.length; i++) {
+			String param = params[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2));
+				} catch (NumberFormatException ex) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	private static String mimeType(String contentType) {
+		int semi = contentType.indexOf(';');
+		String mimeType = semi >= 0 ? contentType.substring(0, semi) : contentType;
+		return mimeType.trim().toLowerCase(Locale.ROOT);
+	}
+
+	private static class GzipStream extends GZIPOutputStream {
+
+		GzipStream(OutputStream out) throws IOException {
+			super(out, BUFFER_SIZE, true);
+		}
+
+		void end() {
+			def.end();
+		}
+	}
+
+	private static class DeflateStream extends DeflaterOutputStream {
+
+		DeflateStream(OutputStream out) {
+			super(out, new Deflater(), BUFFER_SIZE, true);
+		}
+
+		void end() {
+			def.end();
+		}
+	}
+
+}
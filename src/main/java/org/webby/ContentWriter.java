@@ -0,0 +1,15 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A ContentWriter writes a content response piece by piece,
+ * see <code>WebRequest.setContent(ContentWriter, String, long, String)</code>.
+ * The OutputStream writes directly into the HTTP response.
+ */
+public interface ContentWriter {
+
+	void write(OutputStream out) throws IOException;
+
+}
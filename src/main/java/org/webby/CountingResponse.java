@@ -0,0 +1,104 @@
+package org.webby;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A CountingResponse counts the bytes written to the response stream.
+ * Bodies that bypass the stream (sendfile) are counted by their Content-Length.
+ */
+class CountingResponse extends HttpServletResponseWrapper {
+
+	private CountingOutputStream out = null;
+	private long contentLength = -1;
+	private final AtomicBoolean recorded = new AtomicBoolean(false);
+
+	CountingResponse(HttpServletResponse httpResponse) {
+		super(httpResponse);
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new CountingOutputStream(super.getOutputStream());
+		}
+		return out;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		super.setContentLength(len);
+		this.contentLength = len;
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+		super.setContentLengthLong(len);
+		this.contentLength = len;
+	}
+
+	/**
+	 * Returns true the first time it is called, so that a request is recorded
+	 * in the metrics exactly once, also if it failed after being handed to another thread.
+	 */
+	boolean markRecorded() {
+		return recorded.compareAndSet(false, true);
+	}
+
+	/**
+	 * Returns the number of body bytes sent.
+	 */
+	long getBytes() {
+		long written = out != null ? out.count : 0;
+		return written > 0 ? written : Math.max(0, contentLength);
+	}
+
+	private static class CountingOutputStream extends ServletOutputStream {
+
+		private final ServletOutputStream out;
+		// written by one thread at a time, read after the response is sent
+		private volatile long count = 0;
+
+		CountingOutputStream(ServletOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return out.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			out.setWriteListener(writeListener);
+		}
+	}
+
+}
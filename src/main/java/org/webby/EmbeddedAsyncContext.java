@@ -0,0 +1,257 @@
+package org.webby;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An EmbeddedAsyncContext keeps a <code>WebbyServer</code> exchange open
+ * after the servlet returned, until <code>complete</code> is called or it times out.
+ * <code>dispatch</code> runs the servlet again with the request and response of <code>startAsync</code>,
+ * once the servlet call that started async has returned. Dispatch paths are relative to the context
+ * and must not have a query string; dispatching to another context is not supported.
+ */
+class EmbeddedAsyncContext implements AsyncContext {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final ServletRequest request;
+	private final ServletResponse response;
+	private final EmbeddedRequest embeddedRequest;
+	private final EmbeddedResponse embeddedResponse;
+	private final Consumer<EmbeddedAsyncContext> dispatcher;
+	private final List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+	private long timeout = 30_000L;
+	private ScheduledFuture<?> timeoutTask = null;
+	private boolean started = false;
+	private String dispatchPath = null;
+
+	EmbeddedAsyncContext(ServletRequest request, ServletResponse response, EmbeddedRequest embeddedRequest, EmbeddedResponse embeddedResponse,
+			Consumer<EmbeddedAsyncContext> dispatcher) {
+		super();
+		this.request = request;
+		this.response = response;
+		this.embeddedRequest = embeddedRequest;
+		this.embeddedResponse = embeddedResponse;
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Called when the servlet has returned, starts the timeout or a pending dispatch.
+	 */
+	void started(ScheduledExecutorService scheduler) {
+		synchronized (this) {
+			started = true;
+			if (dispatchPath == null) {
+				if (timeout > 0 && !completed.get()) {
+					timeoutTask = scheduler.schedule(this::timeout, timeout, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+		}
+		dispatcher.accept(this);
+	}
+
+	private void timeout() {
+		synchronized (this) {
+			if (completed.get() || dispatchPath != null) {
+				return;
+			}
+		}
+		AsyncEvent event = new AsyncEvent(this, request, response);
+		for (AsyncListener listener : listeners) {
+			try {
+				listener.onTimeout(event);
+			} catch (IOException | RuntimeException ex) {
+				logger.warn("async listener failed on timeout: " + ex, ex);
+			}
+		}
+		// listeners usually complete or dispatch the response, otherwise we do
+		synchronized (this) {
+			if (dispatchPath != null) {
+				return;
+			}
+		}
+		complete();
+	}
+
+	@Override
+	public ServletRequest getRequest() {
+		return request;
+	}
+
+	@Override
+	public ServletResponse getResponse() {
+		return response;
+	}
+
+	@Override
+	public boolean hasOriginalRequestAndResponse() {
+		return request instanceof EmbeddedRequest && response == embeddedResponse;
+	}
+
+	@Override
+	public void dispatch() {
+		if (request instanceof HttpServletRequest) {
+			HttpServletRequest httpRequest = (HttpServletRequest) request;
+			String pathInfo = httpRequest.getPathInfo();
+			dispatch(httpRequest.getServletPath() + (pathInfo != null ? pathInfo : ""));
+		} else {
+			dispatch(embeddedRequest.getPathInfo() != null ? embeddedRequest.getPathInfo() : "");
+		}
+	}
+
+	@Override
+	public void dispatch(String path) {
+		if (path.indexOf('?') >= 0) {
+			throw new IllegalArgumentException("query strings in async dispatch paths are not supported: " + path);
+		}
+		synchronized (this) {
+			if (completed.get() || dispatchPath != null) {
+				throw new IllegalStateException("async already " + (completed.get() ? "completed" : "dispatched"));
+			}
+			dispatchPath = path;
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+			}
+			if (!started) {
+				// dispatched when the servlet call that started async returns
+				return;
+			}
+		}
+		dispatcher.accept(this);
+	}
+
+	@Override
+	public void dispatch(ServletContext context, String path) {
+		if (context != embeddedRequest.getServletContext()) {
+			throw new IllegalStateException("async dispatch to another context is not supported by the embedded server");
+		}
+		dispatch(path);
+	}
+
+	String getDispatchPath() {
+		return dispatchPath;
+	}
+
+	EmbeddedRequest getEmbeddedRequest() {
+		return embeddedRequest;
+	}
+
+	EmbeddedResponse getEmbeddedResponse() {
+		return embeddedResponse;
+	}
+
+	/**
+	 * Called when the servlet has started async again during a dispatch of this context.
+	 */
+	void restarted(EmbeddedAsyncContext asyncContext) {
+		AsyncEvent event = new AsyncEvent(asyncContext, asyncContext.getRequest(), asyncContext.getResponse());
+		for (AsyncListener listener : listeners) {
+			try {
+				listener.onStartAsync(event);
+			} catch (IOException | RuntimeException ex) {
+				logger.warn("async listener failed on start async: " + ex, ex);
+			}
+		}
+	}
+
+	@Override
+	public void complete() {
+		synchronized (this) {
+			if (dispatchPath != null) {
+				throw new IllegalStateException("async already dispatched");
+			}
+		}
+		finish();
+	}
+
+	/**
+	 * Called when the servlet call of a dispatch has returned without starting async again.
+	 */
+	void dispatchReturned() {
+		finish();
+	}
+
+	private void finish() {
+		if (!completed.compareAndSet(false, true)) {
+			return;
+		}
+		synchronized (this) {
+			if (timeoutTask != null) {
+				timeoutTask.cancel(false);
+			}
+		}
+		try {
+			embeddedResponse.finish();
+		} catch (IOException ex) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("cannot finish async response: " + ex);
+			}
+		}
+		AsyncEvent event = new AsyncEvent(this, request, response);
+		for (AsyncListener listener : listeners) {
+			try {
+				listener.onComplete(event);
+			} catch (IOException | RuntimeException ex) {
+				logger.warn("async listener failed on complete: " + ex, ex);
+			}
+		}
+	}
+
+	boolean isCompleted() {
+		return completed.get();
+	}
+
+	@Override
+	public void start(Runnable run) {
+		new Thread(run, "webby-async").start();
+	}
+
+	@Override
+	public void addListener(AsyncListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+		try {
+			return clazz.getConstructor().newInstance();
+		} catch (ReflectiveOperationException ex) {
+			throw new ServletException("cannot create async listener " + clazz.getName(), ex);
+		}
+	}
+
+	@Override
+	public synchronized void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public long getTimeout() {
+		return timeout;
+	}
+
+}
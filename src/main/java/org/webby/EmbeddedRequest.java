@@ -0,0 +1,649 @@
+package org.webby;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsExchange;
+
+/**
+ * An EmbeddedRequest is the HttpServletRequest of a <code>WebbyServer</code> exchange.
+ * Multipart parts are spooled to temporary files, which are deleted when the response is finished.
+ * There is no HttpSession and no authentication: WebbyServer keeps sessions in a sessionStore.
+ */
+class EmbeddedRequest extends HttpServletRequestWrapper {
+
+	private final HttpExchange exchange;
+	private final ServletContext servletContext;
+	private final String contextPath;
+	private final EmbeddedResponse response;
+	private final Consumer<EmbeddedAsyncContext> dispatcher;
+	private final Map<String, Object> attributes = new HashMap<>();
+	private String characterEncoding = null;
+	private Map<String, String[]> parameters = null;
+	private ServletInputStream inputStream = null;
+	private Cookie[] cookies = null;
+	private List<Part> parts = null;
+	private EmbeddedAsyncContext asyncContext = null;
+	private EmbeddedAsyncContext dispatchedContext = null;
+	private String dispatchPath = null;
+
+	EmbeddedRequest(HttpExchange exchange, ServletContext servletContext, String contextPath, EmbeddedResponse response,
+			Consumer<EmbeddedAsyncContext> dispatcher) {
+		super(WebbyServer.defaults(HttpServletRequest.class));
+		this.exchange = exchange;
+		this.servletContext = servletContext;
+		this.contextPath = contextPath;
+		this.response = response;
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Returns true if the request path is the context path or below it.
+	 */
+	boolean isInContext() {
+		String path = exchange.getRequestURI().getPath();
+		return path.equals(contextPath) || path.startsWith(contextPath + "/");
+	}
+
+	/**
+	 * Prepares the request for an async dispatch of its async context to the given path within the context.
+	 */
+	void dispatch(String path) {
+		if (dispatchPath == null) {
+			attributes.put(AsyncContext.ASYNC_REQUEST_URI, getRequestURI());
+			attributes.put(AsyncContext.ASYNC_CONTEXT_PATH, getContextPath());
+			attributes.put(AsyncContext.ASYNC_SERVLET_PATH, getServletPath());
+			attributes.put(AsyncContext.ASYNC_PATH_INFO, getPathInfo());
+			attributes.put(AsyncContext.ASYNC_QUERY_STRING, getQueryString());
+		}
+		dispatchedContext = asyncContext;
+		asyncContext = null;
+		dispatchPath = path;
+	}
+
+	// request line
+
+	@Override
+	public String getMethod() {
+		return exchange.getRequestMethod();
+	}
+
+	@Override
+	public String getRequestURI() {
+		return dispatchPath != null ? contextPath + dispatchPath : exchange.getRequestURI().getRawPath();
+	}
+
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer(getScheme()).append("://").append(getHeader("Host")).append(getRequestURI());
+	}
+
+	@Override
+	public String getQueryString() {
+		return exchange.getRequestURI().getRawQuery();
+	}
+
+	@Override
+	public String getContextPath() {
+		return contextPath;
+	}
+
+	@Override
+	public String getServletPath() {
+		return "";
+	}
+
+	@Override
+	public String getPathInfo() {
+		if (dispatchPath != null) {
+			return dispatchPath.isEmpty() ? null : dispatchPath;
+		}
+		if (!isInContext()) {
+			return null;
+		}
+		String path = exchange.getRequestURI().getPath().substring(contextPath.length());
+		return path.isEmpty() ? null : path;
+	}
+
+	@Override
+	public String getProtocol() {
+		return exchange.getProtocol();
+	}
+
+	@Override
+	public String getScheme() {
+		return isSecure() ? "https" : "http";
+	}
+
+	@Override
+	public boolean isSecure() {
+		return exchange instanceof HttpsExchange;
+	}
+
+	@Override
+	public String getServerName() {
+		return exchange.getLocalAddress().getHostString();
+	}
+
+	@Override
+	public int getServerPort() {
+		return exchange.getLocalAddress().getPort();
+	}
+
+	@Override
+	public String getRemoteAddr() {
+		InetSocketAddress address = exchange.getRemoteAddress();
+		return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+	}
+
+	@Override
+	public String getRemoteHost() {
+		return getRemoteAddr();
+	}
+
+	@Override
+	public int getRemotePort() {
+		return exchange.getRemoteAddress().getPort();
+	}
+
+	@Override
+	public ServletContext getServletContext() {
+		return servletContext;
+	}
+
+	// headers
+
+	@Override
+	public String getHeader(String name) {
+		return exchange.getRequestHeaders().getFirst(name);
+	}
+
+	@Override
+	public Enumeration<String> getHeaders(String name) {
+		List<String> values = exchange.getRequestHeaders().get(name);
+		return Collections.enumeration(values != null ? values : Collections.emptyList());
+	}
+
+	@Override
+	public Enumeration<String> getHeaderNames() {
+		return Collections.enumeration(exchange.getRequestHeaders().keySet());
+	}
+
+	@Override
+	public int getIntHeader(String name) {
+		String value = getHeader(name);
+		return value != null ? Integer.parseInt(value.trim()) : -1;
+	}
+
+	@Override
+	public long getDateHeader(String name) {
+		String value = getHeader(name);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			throw new IllegalArgumentException("invalid date header " + name + ": " + value);
+		}
+	}
+
+	@Override
+	public String getContentType() {
+		return getHeader("Content-Type");
+	}
+
+	@Override
+	public int getContentLength() {
+		long length = getContentLengthLong();
+		return length <= Integer.MAX_VALUE ? (int) length : -1;
+	}
+
+	@Override
+	public long getContentLengthLong() {
+		String value = getHeader("Content-Length");
+		return value != null ? Long.parseLong(value.trim()) : -1;
+	}
+
+	@Override
+	public Cookie[] getCookies() {
+		if (cookies == null) {
+			List<Cookie> list = new ArrayList<>();
+			for (String header : exchange.getRequestHeaders().getOrDefault("Cookie", Collections.emptyList())) {
+				for (String pair : header.split(";")) {
+					int eq = pair.indexOf('=');
+					if (eq > 0) {
+						String name = pair.substring(0, eq).trim();
+						String value = pair.substring(eq + 1).trim();
+						if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+							value = value.substring(1, value.length() - 1);
+						}
+						try {
+							list.add(new Cookie(name, value));
+						} catch (IllegalArgumentException ex) {
+							// invalid cookie name, ignored like containers do
+						}
+					}
+				}
+			}
+			cookies = list.toArray(new Cookie[list.size()]);
+		}
+		return cookies.length > 0 ? cookies : null;
+	}
+
+	@Override
+	public Enumeration<Locale> getLocales() {
+		return Collections.enumeration(Collections.singletonList(getLocale()));
+	}
+
+	@Override
+	public String getLocalAddr() {
+		return exchange.getLocalAddress().getAddress().getHostAddress();
+	}
+
+	@Override
+	public String getLocalName() {
+		return exchange.getLocalAddress().getHostString();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return exchange.getLocalAddress().getPort();
+	}
+
+	@Override
+	public DispatcherType getDispatcherType() {
+		return dispatchPath != null ? DispatcherType.ASYNC : DispatcherType.REQUEST;
+	}
+
+	@Override
+	public Locale getLocale() {
+		String header = getHeader("Accept-Language");
+		if (header == null || header.isEmpty()) {
+			return Locale.getDefault();
+		}
+		String tag = header.split(",")[0].split(";")[0].trim();
+		return tag.equals("*") ? Locale.getDefault() : Locale.forLanguageTag(tag);
+	}
+
+	// body and parameters
+
+	@Override
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	@Override
+	public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+		if (!Charset.isSupported(env)) {
+			throw new UnsupportedEncodingException(env);
+		}
+		this.characterEncoding = env;
+	}
+
+	private Charset getCharset() {
+		return characterEncoding != null ? Charset.forName(characterEncoding) : StandardCharsets.ISO_8859_1;
+	}
+
+	@Override
+	public ServletInputStream getInputStream() {
+		if (inputStream == null) {
+			InputStream in = exchange.getRequestBody();
+			inputStream = new ServletInputStream() {
+
+				private boolean finished = false;
+
+				@Override
+				public int read() throws IOException {
+					int c = in.read();
+					finished = c < 0;
+					return c;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int c = in.read(b, off, len);
+					finished = c < 0;
+					return c;
+				}
+
+				@Override
+				public boolean isFinished() {
+					return finished;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					// reads block, so all data is always available
+					try {
+						readListener.onDataAvailable();
+						readListener.onAllDataRead();
+					} catch (IOException ex) {
+						readListener.onError(ex);
+					}
+				}
+			};
+		}
+		return inputStream;
+	}
+
+	@Override
+	public BufferedReader getReader() {
+		return new BufferedReader(new InputStreamReader(getInputStream(), getCharset()));
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = getParameterMap().get(name);
+		return values != null ? values[0] : null;
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		String[] values = getParameterMap().get(name);
+		return values != null ? values.clone() : null;
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(getParameterMap().keySet());
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		if (parameters == null) {
+			Map<String, List<String>> map = new LinkedHashMap<>();
+			parseParameters(getQueryString(), map);
+			String contentType = getContentType();
+			if (inputStream == null && getMethod().equals("POST") && contentType != null
+					&& contentType.toLowerCase(Locale.ROOT).startsWith("application/x-www-form-urlencoded")) {
+				try {
+					parseParameters(new String(readBody(), StandardCharsets.ISO_8859_1), map);
+				} catch (IOException ex) {
+					throw new IllegalStateException("cannot read form parameters: " + ex, ex);
+				}
+			}
+			Map<String, String[]> result = new LinkedHashMap<>();
+			map.forEach((k, v) -> result.put(k, v.toArray(new String[v.size()])));
+			parameters = Collections.unmodifiableMap(result);
+		}
+		return parameters;
+	}
+
+	private byte[] readBody() throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[8 * 1024];
+		InputStream in = getInputStream();
+		int c;
+		while ((c = in.read(b)) >= 0) {
+			buf.write(b, 0, c);
+		}
+		return buf.toByteArray();
+	}
+
+	private void parseParameters(String s, Map<String, List<String>> map) {
+		if (s == null || s.isEmpty()) {
+			return;
+		}
+		Charset charset = characterEncoding != null ? getCharset() : StandardCharsets.UTF_8;
+		for (String pair : s.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String name = eq >= 0 ? pair.substring(0, eq) : pair;
+			String value = eq >= 0 ? pair.substring(eq + 1) : "";
+			try {
+				map.computeIfAbsent(URLDecoder.decode(name, charset.name()), k -> new ArrayList<>()).add(URLDecoder.decode(value, charset.name()));
+			} catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+				// malformed, ignored like containers do
+			}
+		}
+	}
+
+	@Override
+	public Part getPart(String name) throws IOException, ServletException {
+		for (Part part : getParts()) {
+			if (part.getName().equals(name)) {
+				return part;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Collection<Part> getParts() throws IOException, ServletException {
+		if (parts == null) {
+			String boundary = MultipartReader.getBoundary(getContentType());
+			if (boundary == null) {
+				throw new ServletException("not a multipart request");
+			}
+			parts = new ArrayList<>();
+			response.onFinish(this::deleteParts);
+			File tempDir = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+			MultipartReader reader = new MultipartReader(getInputStream(), boundary, -1, -1, -1);
+			FileUpload upload;
+			while ((upload = reader.nextPart()) != null) {
+				File file = File.createTempFile("webby-part", ".tmp", tempDir);
+				parts.add(new EmbeddedPart(upload, file));
+				try (InputStream in = upload.getInputStream()) {
+					Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+		return parts;
+	}
+
+	private void deleteParts() {
+		for (Part part : parts) {
+			try {
+				part.delete();
+			} catch (IOException ex) {
+				// temp dir is cleaned up anyway
+			}
+		}
+	}
+
+	// attributes
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	@Override
+	public void setAttribute(String name, Object o) {
+		if (o == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, o);
+		}
+	}
+
+	@Override
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	// session
+
+	@Override
+	public HttpSession getSession(boolean create) {
+		// WebRequest sessions are kept in the sessionStore, which WebbyServer always sets
+		if (create) {
+			throw new IllegalStateException("HttpSession is not available in the embedded server, sessions are kept in init parameter sessionStore");
+		}
+		return null;
+	}
+
+	@Override
+	public HttpSession getSession() {
+		return getSession(true);
+	}
+
+	// async
+
+	@Override
+	public boolean isAsyncSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean isAsyncStarted() {
+		return asyncContext != null;
+	}
+
+	@Override
+	public AsyncContext getAsyncContext() {
+		if (asyncContext == null) {
+			throw new IllegalStateException("async not started");
+		}
+		return asyncContext;
+	}
+
+	@Override
+	public AsyncContext startAsync() {
+		return startAsync(this, response);
+	}
+
+	@Override
+	public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+		if (asyncContext != null) {
+			throw new IllegalStateException("async already started");
+		}
+		asyncContext = new EmbeddedAsyncContext(servletRequest, servletResponse, this, response, dispatcher);
+		if (dispatchedContext != null) {
+			dispatchedContext.restarted(asyncContext);
+			dispatchedContext = null;
+		}
+		return asyncContext;
+	}
+
+	EmbeddedAsyncContext getEmbeddedAsyncContext() {
+		return asyncContext;
+	}
+
+	/**
+	 * A multipart part, spooled to a temporary file.
+	 */
+	private static class EmbeddedPart implements Part {
+
+		private final String name;
+		private final String contentType;
+		private final String submittedFileName;
+		private final File file;
+
+		EmbeddedPart(FileUpload upload, File file) {
+			this.name = upload.getName();
+			this.contentType = upload.getContentType();
+			this.submittedFileName = upload.getSubmittedFileName();
+			this.file = file;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new FileInputStream(file);
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getSubmittedFileName() {
+			return submittedFileName;
+		}
+
+		@Override
+		public long getSize() {
+			return file.length();
+		}
+
+		@Override
+		public void write(String fileName) throws IOException {
+			File target = new File(fileName);
+			if (!target.isAbsolute()) {
+				target = new File(file.getParentFile(), fileName);
+			}
+			Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		@Override
+		public void delete() throws IOException {
+			Files.deleteIfExists(file.toPath());
+		}
+
+		@Override
+		public String getHeader(String headerName) {
+			return headerName.equalsIgnoreCase("Content-Type") ? contentType : null;
+		}
+
+		@Override
+		public Collection<String> getHeaders(String headerName) {
+			String value = getHeader(headerName);
+			return value != null ? Collections.singletonList(value) : Collections.emptyList();
+		}
+
+		@Override
+		public Collection<String> getHeaderNames() {
+			return contentType != null ? Collections.singletonList("Content-Type") : Collections.emptyList();
+		}
+	}
+
+}
@@ -0,0 +1,607 @@
+package org.webby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * An EmbeddedResponse is the HttpServletResponse of a <code>WebbyServer</code> exchange.
+ * The body is buffered until the buffer is full or flushed, so that small responses
+ * are sent with a Content-Length; larger responses are sent chunked unless
+ * their length was set. Writes are blocking, unless a WriteListener is set: then written
+ * bytes are buffered, a flush sends them on a write thread and the stream is not ready
+ * until they have been sent, so that the writer never waits for a slow client.
+ */
+class EmbeddedResponse extends HttpServletResponseWrapper {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final HttpExchange exchange;
+	private final Executor writeExecutor;
+	private final String method;
+	private int status = 200;
+	private long contentLength = -1;
+	private String contentType = null;
+	private String characterEncoding = null;
+	private boolean committed = false;
+	private ResponseStream out = null;
+	private PrintWriter writer = null;
+	private boolean finished = false;
+	private Runnable onFinish = null;
+
+	EmbeddedResponse(HttpExchange exchange, Executor writeExecutor) {
+		super(WebbyServer.defaults(HttpServletResponse.class));
+		this.exchange = exchange;
+		this.writeExecutor = writeExecutor;
+		this.method = exchange.getRequestMethod();
+	}
+
+	// status and headers
+
+	@Override
+	public void setStatus(int sc) {
+		if (!committed) {
+			this.status = sc;
+		}
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		sendError(sc, null);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		checkNotCommitted();
+		resetBuffer();
+		setStatus(sc);
+		setContentType("text/plain; charset=utf-8");
+		byte[] content = ("status " + sc + (msg != null ? ": " + msg : "") + "\r\n").getBytes(StandardCharsets.UTF_8);
+		setContentLength(content.length);
+		getOutputStream().write(content);
+		finish();
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		checkNotCommitted();
+		resetBuffer();
+		setStatus(302);
+		setHeader("Location", location);
+		setContentLength(0);
+		finish();
+	}
+
+	private Headers headers() {
+		return exchange.getResponseHeaders();
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if (committed) {
+			return;
+		}
+		if (name.equalsIgnoreCase("Content-Type")) {
+			setContentType(value);
+		} else if (name.equalsIgnoreCase("Content-Length")) {
+			setContentLengthLong(Long.parseLong(value));
+		} else if (value == null) {
+			headers().remove(name);
+		} else {
+			headers().set(name, value);
+		}
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if (!committed && value != null) {
+			headers().add(name, value);
+		}
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		setHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		addHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void setDateHeader(String name, long date) {
+		setHeader(name, formatDate(date));
+	}
+
+	@Override
+	public void addDateHeader(String name, long date) {
+		addHeader(name, formatDate(date));
+	}
+
+	private static String formatDate(long date) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(date).atZone(ZoneOffset.UTC));
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		return headers().containsKey(name);
+	}
+
+	@Override
+	public String getHeader(String name) {
+		return headers().getFirst(name);
+	}
+
+	@Override
+	public Collection<String> getHeaders(String name) {
+		List<String> values = headers().get(name);
+		return values != null ? values : Collections.emptyList();
+	}
+
+	@Override
+	public Collection<String> getHeaderNames() {
+		return headers().keySet();
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		StringBuilder sb = new StringBuilder(cookie.getName()).append('=').append(cookie.getValue() != null ? cookie.getValue() : "");
+		if (cookie.getMaxAge() >= 0) {
+			sb.append("; Max-Age=").append(cookie.getMaxAge());
+		}
+		if (cookie.getDomain() != null) {
+			sb.append("; Domain=").append(cookie.getDomain());
+		}
+		if (cookie.getPath() != null) {
+			sb.append("; Path=").append(cookie.getPath());
+		}
+		if (cookie.getSecure()) {
+			sb.append("; Secure");
+		}
+		if (cookie.isHttpOnly()) {
+			sb.append("; HttpOnly");
+		}
+		addHeader("Set-Cookie", sb.toString());
+	}
+
+	@Override
+	public void setContentType(String type) {
+		if (committed) {
+			return;
+		}
+		this.contentType = type;
+		if (type != null) {
+			int charset = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+			if (charset >= 0) {
+				characterEncoding = type.substring(charset + 8).trim();
+			}
+		}
+	}
+
+	@Override
+	public String getContentType() {
+		if (contentType != null && characterEncoding != null && !contentType.toLowerCase(Locale.ROOT).contains("charset=")) {
+			return contentType + "; charset=" + characterEncoding;
+		}
+		return contentType;
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset) {
+		if (!committed) {
+			this.characterEncoding = charset;
+		}
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return characterEncoding != null ? characterEncoding : "ISO-8859-1";
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		setContentLengthLong(len);
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+		if (!committed) {
+			this.contentLength = len;
+		}
+	}
+
+	@Override
+	public String encodeURL(String url) {
+		// no session ids in URLs
+		return url;
+	}
+
+	@Override
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+
+	@Override
+	@Deprecated
+	public String encodeUrl(String url) {
+		return url;
+	}
+
+	@Override
+	@Deprecated
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+
+	@Override
+	public Locale getLocale() {
+		String language = getHeader("Content-Language");
+		return language != null ? Locale.forLanguageTag(language) : Locale.getDefault();
+	}
+
+	@Override
+	public void setLocale(Locale loc) {
+		if (!committed && loc != null) {
+			headers().set("Content-Language", loc.toLanguageTag());
+		}
+	}
+
+	// body
+
+	@Override
+	public ServletOutputStream getOutputStream() {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter has already been called");
+		}
+		if (out == null) {
+			out = new ResponseStream();
+		}
+		return out;
+	}
+
+	@Override
+	public PrintWriter getWriter() {
+		if (writer == null) {
+			if (out != null) {
+				throw new IllegalStateException("getOutputStream has already been called");
+			}
+			out = new ResponseStream();
+			writer = new PrintWriter(new OutputStreamWriter(out, Charset.forName(getCharacterEncoding())));
+		}
+		return writer;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return BUFFER_SIZE;
+	}
+
+	@Override
+	public void setBufferSize(int size) {
+		// fixed size
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		if (out == null) {
+			out = new ResponseStream();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void resetBuffer() {
+		checkNotCommitted();
+		if (out != null) {
+			out.count = 0;
+		}
+	}
+
+	@Override
+	public void reset() {
+		resetBuffer();
+		headers().clear();
+		status = 200;
+		contentLength = -1;
+		contentType = null;
+		characterEncoding = null;
+	}
+
+	private void checkNotCommitted() {
+		if (committed) {
+			throw new IllegalStateException("response already committed");
+		}
+	}
+
+	/**
+	 * Sends the status line and headers. The body length is the content length if set,
+	 * bodyLength if known (i.e. the whole body is buffered) or chunked.
+	 */
+	private void commit(long bodyLength) throws IOException {
+		committed = true;
+		String type = getContentType();
+		if (type != null) {
+			headers().set("Content-Type", type);
+		}
+		long length = contentLength >= 0 ? contentLength : bodyLength;
+		if (method.equals("HEAD") || status == 204 || status == 304 || (status >= 100 && status < 200)) {
+			if (method.equals("HEAD") && length > 0) {
+				headers().set("Content-Length", String.valueOf(length));
+			}
+			exchange.sendResponseHeaders(status, -1);
+		} else {
+			// for the JDK HttpServer, 0 means chunked and -1 means no body
+			exchange.sendResponseHeaders(status, length > 0 ? length : length == 0 ? -1 : 0);
+		}
+	}
+
+	/**
+	 * Sends everything that was not sent yet and closes the exchange. Called once the request is done.
+	 */
+	void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (out != null && out.isNonBlocking()) {
+			// closing writes the last chunk, which must not block either
+			out.closeLater();
+			return;
+		}
+		close();
+	}
+
+	private void close() throws IOException {
+		try {
+			if (writer != null) {
+				writer.flush();
+			}
+			if (!committed) {
+				commit(out != null ? out.count : 0);
+			}
+			if (out != null) {
+				out.flushBuffer();
+			}
+		} finally {
+			exchange.close();
+			if (onFinish != null) {
+				onFinish.run();
+			}
+		}
+	}
+
+	/**
+	 * Sets a task to run when the response is finished, e.g. to delete temporary files.
+	 */
+	void onFinish(Runnable task) {
+		this.onFinish = task;
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	private class ResponseStream extends ServletOutputStream {
+
+		private final byte[] buf = new byte[BUFFER_SIZE];
+		private int count = 0;
+		private OutputStream body = null;
+		// set with the write listener, guarded by this
+		private volatile ByteArrayOutputStream pending = null;
+		private WriteListener writeListener = null;
+		private boolean writing = false;
+		private boolean closeRequested = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (pending != null) {
+				synchronized (this) {
+					pending.write(b);
+				}
+				return;
+			}
+			if (count == buf.length) {
+				flushBuffer();
+			}
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (pending != null) {
+				synchronized (this) {
+					pending.write(b, off, len);
+				}
+				return;
+			}
+			if (len > buf.length - count) {
+				flushBuffer();
+				if (len >= buf.length) {
+					body().write(b, off, len);
+					return;
+				}
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		private OutputStream body() throws IOException {
+			if (!committed) {
+				commit(-1);
+			}
+			if (body == null) {
+				body = exchange.getResponseBody();
+			}
+			return body;
+		}
+
+		void flushBuffer() throws IOException {
+			if (count > 0) {
+				body().write(buf, 0, count);
+				count = 0;
+			} else if (!committed) {
+				commit(-1);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (pending != null) {
+				startWrite();
+				return;
+			}
+			flushBuffer();
+			if (body != null) {
+				body.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		@Override
+		public boolean isReady() {
+			if (pending == null) {
+				return true;
+			}
+			synchronized (this) {
+				return !writing;
+			}
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			synchronized (this) {
+				if (this.writeListener != null) {
+					throw new IllegalStateException("write listener already set");
+				}
+				this.writeListener = writeListener;
+				ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+				pending.write(buf, 0, count);
+				count = 0;
+				this.pending = pending;
+			}
+			try {
+				writeListener.onWritePossible();
+			} catch (IOException ex) {
+				writeListener.onError(ex);
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				EmbeddedResponse.this.close();
+			} catch (IOException ex) {
+				// client gone, the exchange is closed anyway
+			}
+		}
+
+		boolean isNonBlocking() {
+			return pending != null;
+		}
+
+		/**
+		 * Closes the exchange on the write thread, once all pending bytes are sent.
+		 */
+		void closeLater() {
+			synchronized (this) {
+				closeRequested = true;
+			}
+			startWrite();
+		}
+
+		private void startWrite() {
+			synchronized (this) {
+				if (writing) {
+					// the running write sends what is pending now, too
+					return;
+				}
+				writing = true;
+			}
+			writeExecutor.execute(this::writePending);
+		}
+
+		/**
+		 * Sends pending bytes until there are none, then tells the listener that it may write again.
+		 */
+		private void writePending() {
+			while (true) {
+				byte[] bytes;
+				boolean close;
+				synchronized (this) {
+					bytes = pending.size() > 0 ? pending.toByteArray() : null;
+					pending.reset();
+					close = closeRequested;
+					if (bytes == null && !close) {
+						writing = false;
+						break;
+					}
+				}
+				if (bytes == null) {
+					// all sent, close requested
+					closeQuietly();
+					return;
+				}
+				try {
+					OutputStream body = body();
+					body.write(bytes);
+					body.flush();
+				} catch (IOException ex) {
+					if (close) {
+						closeQuietly();
+						return;
+					}
+					synchronized (this) {
+						pending.reset();
+						writing = false;
+					}
+					writeListener.onError(ex);
+					return;
+				}
+			}
+			try {
+				writeListener.onWritePossible();
+			} catch (IOException ex) {
+				writeListener.onError(ex);
+			}
+		}
+	}
+
+}
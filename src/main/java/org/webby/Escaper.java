@@ -1,27 +1,120 @@
 package org.webby;
 
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escapes values for HTML and JavaScript strings.
+ * Each value is scanned once; a value that needs no escaping is returned as is,
+ * without allocating a new String. The append variants escape directly
+ * into a StringBuilder or Writer.
+ */
 public abstract class Escaper {
 
+	private static final String[] HTML = new String[128];
+	private static final String[] JS = new String[128];
+
+	static {
+		HTML['&'] = "&amp;";
+		HTML['<'] = "&lt;";
+		HTML['>'] = "&gt;";
+		HTML['"'] = "&quot;";
+		JS['"'] = "\\\"";
+		JS['\''] = "\\\'";
+	}
+
 	public static String escapeHtml(Object input) {
-		if (input == null) {
-			return "";
+		return escape(input, HTML);
+	}
+
+	/**
+	 * Appends the HTML escaped value to a StringBuilder, nothing if input is null.
+	 */
+	public static void escapeHtml(Object input, StringBuilder sb) {
+		if (input != null) {
+			escape(input.toString(), 0, HTML, sb);
+		}
+	}
+
+	/**
+	 * Writes the HTML escaped value to a Writer, nothing if input is null.
+	 */
+	public static void escapeHtml(Object input, Writer out) throws IOException {
+		if (input != null) {
+			escape(input.toString(), HTML, out);
 		}
-		String s = input.toString();
-		s = s.replace("&", "&amp;");
-		s = s.replace("<", "&lt;");
-		s = s.replace(">", "&gt;");
-		s = s.replace("\"", "&quot;");
-		return s;
 	}
 
 	public static String escapeJs(Object input) {
+		return escape(input, JS);
+	}
+
+	/**
+	 * Appends the JavaScript escaped value to a StringBuilder, nothing if input is null.
+	 */
+	public static void escapeJs(Object input, StringBuilder sb) {
+		if (input != null) {
+			escape(input.toString(), 0, JS, sb);
+		}
+	}
+
+	/**
+	 * Writes the JavaScript escaped value to a Writer, nothing if input is null.
+	 */
+	public static void escapeJs(Object input, Writer out) throws IOException {
+		if (input != null) {
+			escape(input.toString(), JS, out);
+		}
+	}
+
+	private static String escape(Object input, String[] replacements) {
 		if (input == null) {
 			return "";
 		}
 		String s = input.toString();
-		s = s.replace("\"", "\\\"");
-		s = s.replace("\'", "\\\'");
-		return s;
+		int first = indexOfEscape(s, replacements);
+		if (first < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length() + 16);
+		sb.append(s, 0, first);
+		escape(s, first, replacements, sb);
+		return sb.toString();
+	}
+
+	private static int indexOfEscape(String s, String[] replacements) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 128 && replacements[c] != null) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void escape(String s, int from, String[] replacements, StringBuilder sb) {
+		int start = from;
+		for (int i = from; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 128 && replacements[c] != null) {
+				sb.append(s, start, i).append(replacements[c]);
+				start = i + 1;
+			}
+		}
+		sb.append(s, start, s.length());
+	}
+
+	private static void escape(String s, String[] replacements, Writer out) throws IOException {
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 128 && replacements[c] != null) {
+				out.write(s, start, i - start);
+				out.write(replacements[c]);
+				start = i + 1;
+			}
+		}
+		out.write(s, start, s.length() - start);
 	}
 
 }
@@ -0,0 +1,150 @@
+package org.webby;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An EventConnection is a long-lived server-sent events response.
+ * It writes with non-blocking servlet I/O, so no thread waits for slow clients.
+ * Events that cannot be written immediately are queued; if the queue is full,
+ * the connection is closed.
+ */
+class EventConnection implements WriteListener, AsyncListener {
+
+	private static final byte[] HELLO = ":\n\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final EventHub hub;
+	private final String[] channels;
+	private final AsyncContext asyncContext;
+	private final ServletOutputStream out;
+	private final Queue<byte[]> queue;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private boolean unflushed = false;
+
+	EventConnection(EventHub hub, String[] channels, AsyncContext asyncContext, ServletOutputStream out, int queueSize) {
+		super();
+		this.hub = hub;
+		this.channels = channels;
+		this.asyncContext = asyncContext;
+		this.out = out;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+	}
+
+	/**
+	 * Subscribes to the hub and starts writing.
+	 */
+	void open() {
+		queue.offer(HELLO);
+		asyncContext.addListener(this);
+		hub.subscribe(this, channels);
+		out.setWriteListener(this);
+	}
+
+	/**
+	 * Queues an event, returns false if this connection is closed.
+	 */
+	boolean send(byte[] event) {
+		if (closed.get()) {
+			return false;
+		}
+		if (!queue.offer(event)) {
+			logger.info("closing event connection: client too slow, " + queue.size() + " events pending");
+			close();
+			return false;
+		}
+		drain();
+		return true;
+	}
+
+	/**
+	 * Sends a comment, unless events are pending anyway. Writing it to a client
+	 * that is gone fails, which closes this connection.
+	 */
+	void heartbeat() {
+		if (queue.isEmpty()) {
+			send(HEARTBEAT);
+		}
+	}
+
+	private synchronized void drain() {
+		try {
+			while (!closed.get() && out.isReady()) {
+				byte[] event = queue.poll();
+				if (event != null) {
+					out.write(event);
+					unflushed = true;
+				} else if (unflushed) {
+					out.flush();
+					unflushed = false;
+				} else {
+					break;
+				}
+			}
+		} catch (IOException | IllegalStateException ex) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("closing event connection: " + ex);
+			}
+			close();
+		}
+	}
+
+	void close() {
+		if (closed.compareAndSet(false, true)) {
+			hub.unsubscribe(this, channels);
+			queue.clear();
+			try {
+				asyncContext.complete();
+			} catch (IllegalStateException ex) {
+				// already completed
+			}
+		}
+	}
+
+	// WriteListener
+
+	@Override
+	public void onWritePossible() throws IOException {
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		close();
+	}
+
+	// AsyncListener
+
+	@Override
+	public void onComplete(AsyncEvent event) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onError(AsyncEvent event) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) throws IOException {
+	}
+
+}
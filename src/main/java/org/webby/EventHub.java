@@ -0,0 +1,117 @@
+package org.webby;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An EventHub broadcasts server-sent events to all connections
+ * that subscribed to a channel, see <code>WebRequest.setEvents</code>.
+ * Events can be broadcast from any thread. 
+ * Each connection has a bounded queue of pending events; connections that 
+ * cannot keep up are closed, clients will usually reconnect.
+ * Idle connections are sent a comment every eventHeartbeat seconds (init parameter,
+ * default 30), so that connections of clients that are gone are noticed and closed.
+ * 
+ * @see AppContext#getEventHub()
+ */
+public class EventHub {
+
+	private final Map<String, Set<EventConnection>> channels = new ConcurrentHashMap<>();
+
+	/**
+	 * Sends an event to all connections subscribed to a channel.
+	 * The event name may be null, the data may contain line breaks.
+	 * Returns the number of connections the event was sent to.
+	 */
+	public int broadcast(String channel, String event, String data) {
+		Set<EventConnection> connections = channels.get(channel);
+		if (connections == null || connections.isEmpty()) {
+			return 0;
+		}
+		byte[] bytes = format(event, data);
+		int count = 0;
+		for (EventConnection connection : connections) {
+			if (connection.send(bytes)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of connections subscribed to a channel.
+	 */
+	public int getConnectionCount(String channel) {
+		Set<EventConnection> connections = channels.get(channel);
+		return connections != null ? connections.size() : 0;
+	}
+
+	void subscribe(EventConnection connection, String[] channelNames) {
+		for (String channel : channelNames) {
+			// atomic with unsubscribe, which removes empty channels
+			channels.compute(channel, (k, connections) -> {
+				if (connections == null) {
+					connections = ConcurrentHashMap.newKeySet();
+				}
+				connections.add(connection);
+				return connections;
+			});
+		}
+	}
+
+	void unsubscribe(EventConnection connection, String[] channelNames) {
+		for (String channel : channelNames) {
+			channels.computeIfPresent(channel, (k, connections) -> {
+				connections.remove(connection);
+				return connections.isEmpty() ? null : connections;
+			});
+		}
+	}
+
+	/**
+	 * Sends a comment to all connections without pending events.
+	 */
+	void heartbeat() {
+		Set<EventConnection> all = new HashSet<>();
+		for (Set<EventConnection> connections : channels.values()) {
+			all.addAll(connections);
+		}
+		for (EventConnection connection : all) {
+			connection.heartbeat();
+		}
+	}
+
+	void closeAll() {
+		for (Set<EventConnection> connections : channels.values()) {
+			for (EventConnection connection : connections) {
+				connection.close();
+			}
+		}
+	}
+
+	static byte[] format(String event, String data) {
+		StringBuilder sb = new StringBuilder(data.length() + 32);
+		if (event != null) {
+			sb.append("event: ").append(event).append('\n');
+		}
+		int start = 0;
+		while (true) {
+			int end = data.indexOf('\n', start);
+			String line = end >= 0 ? data.substring(start, end) : data.substring(start);
+			if (line.endsWith("\r")) {
+				line = line.substring(0, line.length() - 1);
+			}
+			sb.append("data: ").append(line).append('\n');
+			if (end < 0) {
+				break;
+			}
+			start = end + 1;
+		}
+		sb.append('\n');
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,144 @@
+package org.webby;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FileSessionStore keeps each session in a file of a directory, so sessions
+ * survive restarts and can be shared by nodes that mount the same directory.
+ * Session values must be serializable. The file modification time is the
+ * last access time, idle sessions are deleted by a background thread.
+ */
+public class FileSessionStore implements SessionStore {
+
+	private static final String SUFFIX = ".session";
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final Path directory;
+	private final long maxIdleMillis;
+	private final ScheduledExecutorService sweeper;
+
+	public FileSessionStore(File directory, int maxIdleSeconds) throws IOException {
+		super();
+		this.directory = directory.toPath();
+		this.maxIdleMillis = maxIdleSeconds * 1000L;
+		Files.createDirectories(this.directory);
+		this.sweeper = Sessions.startSweeper("webby-session-sweeper", this::evictIdle, maxIdleSeconds);
+	}
+
+	@Override
+	public Map<String, Object> load(String sessionId) {
+		Path file = getFile(sessionId);
+		if (file == null) {
+			return null;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			if (now - Files.getLastModifiedTime(file).toMillis() > maxIdleMillis) {
+				Files.deleteIfExists(file);
+				return null;
+			}
+			Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+			try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> data = (Map<String, Object>) in.readObject();
+				return data;
+			}
+		} catch (NoSuchFileException ex) {
+			return null;
+		} catch (IOException | ClassNotFoundException | ClassCastException ex) {
+			logger.warn("cannot load session file " + file + ": " + ex, ex);
+			return null;
+		}
+	}
+
+	@Override
+	public void save(String sessionId, Map<String, Object> data) {
+		Path file = getFile(sessionId);
+		if (file == null) {
+			throw new IllegalArgumentException("invalid session id");
+		}
+		try {
+			// write and rename, so that concurrent loads never see a partial file
+			Path tmp = Files.createTempFile(directory, sessionId, ".tmp");
+			try {
+				try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+					out.writeObject(new HashMap<>(data));
+				}
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException("cannot save session file " + file, ex);
+		}
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		Path file = getFile(sessionId);
+		if (file == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException ex) {
+			throw new UncheckedIOException("cannot delete session file " + file, ex);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		sweeper.shutdownNow();
+	}
+
+	/**
+	 * Returns the file of a session, or null if the session id contains invalid characters.
+	 */
+	private Path getFile(String sessionId) {
+		if (sessionId.isEmpty()) {
+			return null;
+		}
+		for (int i = 0; i < sessionId.length(); i++) {
+			char c = sessionId.charAt(i);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+				return null;
+			}
+		}
+		return directory.resolve(sessionId + SUFFIX);
+	}
+
+	private void evictIdle() {
+		long oldest = System.currentTimeMillis() - maxIdleMillis;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				try {
+					if (Files.getLastModifiedTime(file).toMillis() < oldest) {
+						Files.deleteIfExists(file);
+					}
+				} catch (IOException ex) {
+					// deleted concurrently
+				}
+			}
+		} catch (IOException ex) {
+			logger.warn("cannot evict idle sessions in " + directory + ": " + ex, ex);
+		}
+	}
+
+}
@@ -24,7 +24,7 @@ public interface FileUpload {
 	String getSubmittedFileName();
 
 	/**
-	 * The size of the upload in bytes.
+	 * The size of the upload in bytes, or -1 if not known (see MultipartReader).
 	 */
 	long getSize();
 
@@ -0,0 +1,12 @@
+package org.webby;
+
+/**
+ * A Handler serves requests for a route registered in a <code>Router</code>.
+ * 
+ * @see Router
+ */
+public interface Handler {
+
+	void serve(WebRequest req) throws Exception;
+
+}
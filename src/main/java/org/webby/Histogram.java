@@ -0,0 +1,96 @@
+package org.webby;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Histogram records values (e.g. latencies in microseconds) into log-linear buckets,
+ * like HdrHistogram: every power of two is split into 16 sub-buckets,
+ * so percentiles are accurate to about 6%.
+ * Recording is lock-free and does not allocate. Reading while recording
+ * gives a consistent enough snapshot for monitoring.
+ */
+class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values up to 2^40 (about 12 days in microseconds)
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value, negative values are recorded as 0.
+	 */
+	void record(long value) {
+		value = Math.max(0, Math.min(value, MAX_VALUE));
+		counts.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getMax() {
+		return max.get();
+	}
+
+	long getMean() {
+		long n = count.sum();
+		return n > 0 ? sum.sum() / n : 0;
+	}
+
+	/**
+	 * Returns the value at a percentile (0 to 100), i.e. the upper bound of its bucket,
+	 * but never more than the max value. Returns 0 if nothing was recorded.
+	 */
+	long getPercentile(double percentile) {
+		long n = 0;
+		int buckets = counts.length();
+		long[] snapshot = new long[buckets];
+		for (int i = 0; i < buckets; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < buckets; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long lowerBound = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.webby;
+
+import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
+import org.apache.velocity.context.Context;
+
+/**
+ * A HtmlEscapeHandler HTML escapes all values inserted by template references,
+ * see init parameter templateAutoEscape.
+ * References whose name ends with "Html", e.g. <code>$bodyHtml</code> or
+ * <code>$page.introHtml</code>, hold markup and are inserted as is, and so are
+ * values that are escaped explicitly, e.g. <code>$Escaper.escapeJs($name)</code>.
+ * Values that need no escaping are inserted without copying.
+ */
+public class HtmlEscapeHandler implements ReferenceInsertionEventHandler {
+
+	@Override
+	public Object referenceInsert(Context context, String reference, Object value) {
+		if (value == null || isHtmlReference(reference) || isEscaperReference(reference)) {
+			return value;
+		}
+		return Escaper.escapeHtml(value);
+	}
+
+	private static boolean isEscaperReference(String reference) {
+		int start = 0;
+		while (start < reference.length() && "$!{".indexOf(reference.charAt(start)) >= 0) {
+			start++;
+		}
+		return reference.startsWith("Escaper.", start);
+	}
+
+	private static boolean isHtmlReference(String reference) {
+		int end = reference.length();
+		if (end > 0 && reference.charAt(end - 1) == '}') {
+			end--;
+		}
+		if (end > 1 && reference.startsWith("()", end - 2)) {
+			end -= 2;
+		}
+		return reference.startsWith("Html", end - 4);
+	}
+
+}
@@ -0,0 +1,15 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A JsonWriter writes a json response text piece by piece,
+ * see <code>WebRequest.setJson(JsonWriter)</code>.
+ * The Writer encodes UTF-8 directly into the HTTP response, using a bounded buffer.
+ */
+public interface JsonWriter {
+
+	void write(Writer out) throws IOException;
+
+}
@@ -0,0 +1,205 @@
+package org.webby;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A MappedFileCache maps download files into memory once and shares the mapping
+ * between all requests that send them, see init parameter downloadMapCacheSize.
+ * It is bounded by the total size of the mapped files and evicts least recently used ones.
+ * Mappings are reference counted: an evicted or outdated file is unmapped when the last
+ * request sending it releases it, not before. Files must be replaced, not truncated
+ * in place, while they are mapped.
+ */
+class MappedFileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(MappedFileCache.class);
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		// unmapping needs Unsafe.invokeCleaner (JDK 9), otherwise mappings are unmapped by the GC
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			logger.info("mapped files cannot be unmapped explicitly, leaving it to the GC: " + ex);
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private final long maxBytes;
+	private final long minSize;
+	private final LinkedHashMap<String, Mapping> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	MappedFileCache(long maxBytes, long minSize) {
+		super();
+		this.maxBytes = maxBytes;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Returns the mapping of a file with the given length and modification time,
+	 * mapping it if it is not cached or has changed. Returns null if the file is
+	 * too small or too large to be mapped; it must then be read instead.
+	 * The caller must <code>release</code> the mapping when done.
+	 */
+	Mapping acquire(File file, long length, long lastModified) throws IOException {
+		if (length < minSize || length > maxBytes || length > Integer.MAX_VALUE) {
+			return null;
+		}
+		String key = file.getAbsolutePath();
+		synchronized (this) {
+			Mapping mapping = entries.get(key);
+			if (mapping != null) {
+				if (mapping.length == length && mapping.lastModified == lastModified) {
+					hits.increment();
+					mapping.refs.incrementAndGet();
+					return mapping;
+				}
+				remove(key);
+			}
+		}
+		misses.increment();
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < length) {
+				// changed since its length was read
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		}
+		// one reference for the cache, one for the caller
+		Mapping mapping = new Mapping(buffer, length, lastModified);
+		mapping.refs.incrementAndGet();
+		synchronized (this) {
+			Mapping other = entries.get(key);
+			if (other != null && other.length == length && other.lastModified == lastModified) {
+				// mapped concurrently by another request, use that one
+				other.refs.incrementAndGet();
+				mapping.release();
+				mapping.release();
+				return other;
+			}
+			remove(key);
+			entries.put(key, mapping);
+			bytes += length;
+			Iterator<Mapping> it = entries.values().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				Mapping eldest = it.next();
+				if (eldest == mapping) {
+					continue;
+				}
+				it.remove();
+				bytes -= eldest.length;
+				eldest.release();
+				evictions.increment();
+			}
+		}
+		return mapping;
+	}
+
+	private void remove(String key) {
+		Mapping old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.length;
+			old.release();
+		}
+	}
+
+	/**
+	 * Removes all mappings; they are unmapped when released by the requests still sending them.
+	 */
+	synchronized void clear() {
+		for (Mapping mapping : entries.values()) {
+			mapping.release();
+		}
+		entries.clear();
+		bytes = 0;
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * A mapped file, shared by the cache and the requests sending it.
+	 */
+	static class Mapping {
+
+		private final MappedByteBuffer buffer;
+		final long length;
+		final long lastModified;
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		Mapping(MappedByteBuffer buffer, long length, long lastModified) {
+			this.buffer = buffer;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns a buffer of count bytes from start, sharing the mapped memory.
+		 * It must not be used after <code>release</code>.
+		 */
+		ByteBuffer slice(long start, long count) {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position((int) start);
+			slice.limit((int) (start + count));
+			return slice;
+		}
+
+		/**
+		 * Adds a reference. The caller must know that the mapping is still referenced,
+		 * e.g. by a cache holding it, while it does so.
+		 */
+		void retain() {
+			refs.incrementAndGet();
+		}
+
+		/**
+		 * Releases a reference, and unmaps the file when it was the last one.
+		 */
+		void release() {
+			if (refs.decrementAndGet() == 0 && INVOKE_CLEANER != null) {
+				try {
+					INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				} catch (ReflectiveOperationException ex) {
+					logger.warn("cannot unmap file: " + ex);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.webby;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A MemorySessionStore keeps sessions in memory, sessions that were
+ * not accessed for the idle timeout are evicted by a background thread.
+ * Sessions are lost when the servlet is destroyed.
+ */
+public class MemorySessionStore implements SessionStore {
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final long maxIdleNanos;
+	private final ScheduledExecutorService sweeper;
+
+	public MemorySessionStore(int maxIdleSeconds) {
+		super();
+		this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleSeconds);
+		this.sweeper = Sessions.startSweeper("webby-session-sweeper", this::evictIdle, maxIdleSeconds);
+	}
+
+	@Override
+	public Map<String, Object> load(String sessionId) {
+		Entry entry = entries.get(sessionId);
+		if (entry == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		if (entry.isIdle(now, maxIdleNanos)) {
+			entries.remove(sessionId, entry);
+			return null;
+		}
+		entry.lastAccess = now;
+		// a copy, concurrent requests of the same session must not see each other's changes
+		return new HashMap<>(entry.data);
+	}
+
+	@Override
+	public void save(String sessionId, Map<String, Object> data) {
+		entries.put(sessionId, new Entry(new HashMap<>(data)));
+	}
+
+	@Override
+	public void delete(String sessionId) {
+		entries.remove(sessionId);
+	}
+
+	@Override
+	public void destroy() {
+		sweeper.shutdownNow();
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of sessions, including idle sessions that are not evicted yet.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void evictIdle() {
+		long now = System.nanoTime();
+		entries.values().removeIf(entry -> entry.isIdle(now, maxIdleNanos));
+	}
+
+	private static class Entry {
+
+		final Map<String, Object> data;
+		volatile long lastAccess = System.nanoTime();
+
+		Entry(Map<String, Object> data) {
+			this.data = data;
+		}
+
+		boolean isIdle(long now, long maxIdleNanos) {
+			return now - lastAccess > maxIdleNanos;
+		}
+	}
+
+}
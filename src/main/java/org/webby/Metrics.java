@@ -0,0 +1,200 @@
+package org.webby;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics records request counts, latencies, response sizes and status codes per route,
+ * and render latencies per template. Latencies are recorded in microseconds.
+ * A route is the pattern of the matching Router route, e.g. "GET /users/{id}",
+ * or the request path if no route matched. To bound memory, at most maxRoutes
+ * routes are recorded, further routes are counted as "(other)".
+ */
+class Metrics {
+
+	private static final String OTHER = "(other)";
+
+	private final int maxRoutes;
+	private final long startTime = System.currentTimeMillis();
+	private final LongAdder inFlight = new LongAdder();
+	private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+	private final Map<String, Histogram> templates = new ConcurrentHashMap<>();
+	private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+	Metrics(int maxRoutes) {
+		super();
+		this.maxRoutes = maxRoutes;
+	}
+
+	/**
+	 * Called when a request starts, must be followed by <code>end</code>.
+	 */
+	void begin() {
+		inFlight.increment();
+	}
+
+	/**
+	 * Called when a request has been served and sent.
+	 * serveNanos is the time spent in the handler, writeNanos the time spent rendering and sending the response.
+	 */
+	void end(String route, int status, long serveNanos, long writeNanos, long bytes) {
+		inFlight.decrement();
+		RouteMetrics m = routes.get(route);
+		if (m == null) {
+			if (routes.size() >= maxRoutes) {
+				route = OTHER;
+			}
+			m = routes.computeIfAbsent(route, k -> new RouteMetrics());
+		}
+		m.serve.record(serveNanos / 1000L);
+		m.write.record(writeNanos / 1000L);
+		m.total.record((serveNanos + writeNanos) / 1000L);
+		m.bytes.add(bytes);
+		int statusClass = status / 100;
+		if (statusClass >= 1 && statusClass <= 5) {
+			m.statusClasses[statusClass].increment();
+		}
+		LongAdder count = statusCodes.get(status);
+		if (count == null) {
+			count = statusCodes.computeIfAbsent(status, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	/**
+	 * Records the render time of a template.
+	 */
+	void recordTemplate(String template, long renderNanos) {
+		Histogram h = templates.get(template);
+		if (h == null) {
+			h = templates.computeIfAbsent(template, k -> new Histogram());
+		}
+		h.record(renderNanos / 1000L);
+	}
+
+	/**
+	 * Returns the metrics in a line based text format.
+	 */
+	String toText() {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("uptime_seconds ").append((System.currentTimeMillis() - startTime) / 1000L).append("\n");
+		sb.append("in_flight ").append(inFlight.sum()).append("\n");
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(statusCodes).entrySet()) {
+			sb.append("status ").append(e.getKey()).append(' ').append(e.getValue().sum()).append("\n");
+		}
+		for (Map.Entry<String, RouteMetrics> e : new TreeMap<>(routes).entrySet()) {
+			RouteMetrics m = e.getValue();
+			sb.append("route \"").append(e.getKey()).append("\" count=").append(m.total.getCount());
+			appendText(sb, "serve", m.serve);
+			appendText(sb, "write", m.write);
+			appendText(sb, "total", m.total);
+			sb.append(" bytes=").append(m.bytes.sum());
+			for (int i = 1; i <= 5; i++) {
+				sb.append(' ').append(i).append("xx=").append(m.statusClasses[i].sum());
+			}
+			sb.append("\n");
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(templates).entrySet()) {
+			sb.append("template \"").append(e.getKey()).append("\" count=").append(e.getValue().getCount());
+			appendText(sb, "render", e.getValue());
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	private static void appendText(StringBuilder sb, String name, Histogram h) {
+		sb.append(' ').append(name).append("_p50_us=").append(h.getPercentile(50));
+		sb.append(' ').append(name).append("_p99_us=").append(h.getPercentile(99));
+		sb.append(' ').append(name).append("_max_us=").append(h.getMax());
+	}
+
+	/**
+	 * Returns the metrics as a JSON object.
+	 */
+	String toJson() {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\"uptimeSeconds\":").append((System.currentTimeMillis() - startTime) / 1000L);
+		sb.append(",\"inFlight\":").append(inFlight.sum());
+		sb.append(",\"status\":{");
+		String sep = "";
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(statusCodes).entrySet()) {
+			sb.append(sep).append('"').append(e.getKey()).append("\":").append(e.getValue().sum());
+			sep = ",";
+		}
+		sb.append("},\"routes\":{");
+		sep = "";
+		for (Map.Entry<String, RouteMetrics> e : new TreeMap<>(routes).entrySet()) {
+			RouteMetrics m = e.getValue();
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(":{\"count\":").append(m.total.getCount());
+			sb.append(",\"serve\":");
+			appendJson(sb, m.serve);
+			sb.append(",\"write\":");
+			appendJson(sb, m.write);
+			sb.append(",\"total\":");
+			appendJson(sb, m.total);
+			sb.append(",\"bytes\":").append(m.bytes.sum());
+			sb.append(",\"status\":{");
+			for (int i = 1; i <= 5; i++) {
+				sb.append(i > 1 ? "," : "").append('"').append(i).append("xx\":").append(m.statusClasses[i].sum());
+			}
+			sb.append("}}");
+			sep = ",";
+		}
+		sb.append("},\"templates\":{");
+		sep = "";
+		for (Map.Entry<String, Histogram> e : new TreeMap<>(templates).entrySet()) {
+			sb.append(sep);
+			appendJsonString(sb, e.getKey());
+			sb.append(':');
+			appendJson(sb, e.getValue());
+			sep = ",";
+		}
+		sb.append("}}");
+		return sb.toString();
+	}
+
+	private static void appendJson(StringBuilder sb, Histogram h) {
+		sb.append("{\"count\":").append(h.getCount());
+		sb.append(",\"meanUs\":").append(h.getMean());
+		sb.append(",\"p50Us\":").append(h.getPercentile(50));
+		sb.append(",\"p90Us\":").append(h.getPercentile(90));
+		sb.append(",\"p99Us\":").append(h.getPercentile(99));
+		sb.append(",\"maxUs\":").append(h.getMax());
+		sb.append('}');
+	}
+
+	private static void appendJsonString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	private static class RouteMetrics {
+
+		final Histogram serve = new Histogram();
+		final Histogram write = new Histogram();
+		final Histogram total = new Histogram();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder[] statusClasses = new LongAdder[6];
+
+		RouteMetrics() {
+			for (int i = 0; i < statusClasses.length; i++) {
+				statusClasses[i] = new LongAdder();
+			}
+		}
+	}
+
+}
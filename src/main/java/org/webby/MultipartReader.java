@@ -0,0 +1,363 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A MultipartReader parses a multipart/form-data request body while it arrives,
+ * without buffering parts in memory or in temp files.
+ * Parts must be read in order: calling <code>nextPart</code> skips the rest of the current part.
+ * If a limit is exceeded, reading throws an IOException and the upload is aborted.
+ * <pre>
+ * MultipartReader reader = req.getMultipartReader();
+ * FileUpload part;
+ * while ((part = reader.nextPart()) != null) {
+ *   try (InputStream in = part.getInputStream()) {
+ *     ...
+ *   }
+ * }
+ * </pre>
+ *
+ * @see WebRequest#getMultipartReader()
+ */
+public class MultipartReader {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buf;
+	private int pos = 0;
+	private int lim = 0;
+	private boolean eof = false;
+	private final long maxParts;
+	private final long maxPartSize;
+	private final long maxSize;
+	private long parts = 0;
+	private long totalSize = 0;
+	private PartInputStream current = null;
+	private boolean finished = false;
+
+	/**
+	 * Creates a reader for a request body with the given boundary.
+	 * A limit of -1 means unlimited.
+	 */
+	public MultipartReader(InputStream in, String boundary, long maxParts, long maxPartSize, long maxSize) {
+		super();
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buf = new byte[BUFFER_SIZE + delimiter.length];
+		// the first boundary may be at the very start, without a preceding CRLF
+		this.buf[0] = '\r';
+		this.buf[1] = '\n';
+		this.lim = 2;
+		this.maxParts = maxParts;
+		this.maxPartSize = maxPartSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the boundary of a multipart content type, or null if it is not a multipart content type.
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+			return null;
+		}
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+				String boundary = param.substring(9).trim();
+				if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+					boundary = boundary.substring(1, boundary.length() - 1);
+				}
+				return boundary.isEmpty() ? null : boundary;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the next part, or null if there are no more parts.
+	 * Form fields are parts without a submitted file name.
+	 * The size of a part is not known in advance, <code>FileUpload.getSize</code> returns -1.
+	 */
+	public FileUpload nextPart() throws IOException {
+		if (finished) {
+			return null;
+		}
+		// skip preamble or rest of current part
+		PartInputStream skip = current != null ? current : new PartInputStream(-1);
+		while (skip.skip(BUFFER_SIZE) > 0) {
+			// skipping
+		}
+		current = null;
+		// delimiter, then "--" (end) or CRLF
+		pos += delimiter.length;
+		if (!fill(2)) {
+			throw new IOException("multipart: unexpected end of stream after boundary");
+		}
+		if (buf[pos] == '-' && buf[pos + 1] == '-') {
+			finished = true;
+			return null;
+		}
+		String line = readLine();
+		if (!line.trim().isEmpty()) {
+			throw new IOException("multipart: invalid boundary line");
+		}
+		parts++;
+		if (maxParts >= 0 && parts > maxParts) {
+			throw new IOException("multipart: more than " + maxParts + " parts");
+		}
+		// headers
+		String name = null;
+		String fileName = null;
+		String contentType = null;
+		int headerSize = 0;
+		while (true) {
+			line = readLine();
+			headerSize += line.length();
+			if (headerSize > MAX_HEADER_SIZE) {
+				throw new IOException("multipart: part headers too large");
+			}
+			if (line.isEmpty()) {
+				break;
+			}
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				continue;
+			}
+			String headerName = line.substring(0, colon).trim();
+			String headerValue = line.substring(colon + 1).trim();
+			if (headerName.equalsIgnoreCase("Content-Disposition")) {
+				name = getHeaderParam(headerValue, "name");
+				fileName = getHeaderParam(headerValue, "filename");
+			} else if (headerName.equalsIgnoreCase("Content-Type")) {
+				contentType = headerValue;
+			}
+		}
+		current = new PartInputStream(maxPartSize);
+		return new StreamingFileUpload(name, contentType, fileName, current);
+	}
+
+	private static String getHeaderParam(String headerValue, String paramName) {
+		for (String param : headerValue.split(";")) {
+			param = param.trim();
+			int eq = param.indexOf('=');
+			if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(paramName)) {
+				String value = param.substring(eq + 1).trim();
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	private String readLine() throws IOException {
+		int start = pos;
+		int i = pos;
+		while (true) {
+			if (i + 1 >= lim) {
+				int offset = i - pos;
+				if (!fill(offset + 2)) {
+					throw new IOException("multipart: unexpected end of stream in part headers");
+				}
+				start = pos;
+				i = pos + offset;
+			}
+			if (buf[i] == '\r' && buf[i + 1] == '\n') {
+				String line = new String(buf, start, i - start, StandardCharsets.UTF_8);
+				pos = i + 2;
+				return line;
+			}
+			i++;
+			if (i - start > MAX_HEADER_SIZE) {
+				throw new IOException("multipart: part header line too long");
+			}
+		}
+	}
+
+	/**
+	 * Makes sure at least n bytes are buffered at pos, returns false on end of stream.
+	 */
+	private boolean fill(int n) throws IOException {
+		if (lim - pos >= n) {
+			return true;
+		}
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, lim - pos);
+			lim -= pos;
+			pos = 0;
+		}
+		while (lim < n && !eof) {
+			int c = in.read(buf, lim, buf.length - lim);
+			if (c < 0) {
+				eof = true;
+			} else {
+				lim += c;
+				totalSize += c;
+				if (maxSize >= 0 && totalSize > maxSize) {
+					throw new IOException("multipart: request larger than " + maxSize + " bytes");
+				}
+			}
+		}
+		return lim - pos >= n;
+	}
+
+	/**
+	 * Returns the index of the delimiter in buf[pos..lim), or -1 if not found.
+	 */
+	private int indexOfDelimiter() {
+		byte first = delimiter[0];
+		int last = lim - delimiter.length;
+		outer: for (int i = pos; i <= last; i++) {
+			if (buf[i] != first) {
+				continue;
+			}
+			for (int j = 1; j < delimiter.length; j++) {
+				if (buf[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The body of a part, ends before the next delimiter.
+	 */
+	private class PartInputStream extends InputStream {
+
+		private final long maxPartSize;
+		private long size = 0;
+		private boolean ended = false;
+
+		PartInputStream(long maxPartSize) {
+			this.maxPartSize = maxPartSize;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int c = read(b, 0, 1);
+			return c < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (ended) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			int available = available(len);
+			if (available < 0) {
+				ended = true;
+				return -1;
+			}
+			System.arraycopy(buf, pos, b, off, available);
+			pos += available;
+			return count(available);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (ended) {
+				return 0;
+			}
+			int available = available((int) Math.min(n, BUFFER_SIZE));
+			if (available < 0) {
+				ended = true;
+				return 0;
+			}
+			pos += available;
+			return count(available);
+		}
+
+		/**
+		 * Returns how many bytes (at most max) can be read at pos, or -1 at the end of the part.
+		 */
+		private int available(int max) throws IOException {
+			fill(delimiter.length);
+			int index = indexOfDelimiter();
+			if (index == pos) {
+				return -1;
+			}
+			int available;
+			if (index >= 0) {
+				available = index - pos;
+			} else {
+				// keep a possibly incomplete delimiter at the end of the buffer
+				available = lim - pos - (delimiter.length - 1);
+				if (available <= 0) {
+					if (eof) {
+						throw new IOException("multipart: unexpected end of stream in part");
+					}
+					fill(lim - pos + 1);
+					return available(max);
+				}
+			}
+			return Math.min(available, max);
+		}
+
+		private int count(int n) throws IOException {
+			size += n;
+			if (maxPartSize >= 0 && size > maxPartSize) {
+				throw new IOException("multipart: part larger than " + maxPartSize + " bytes");
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+			// the rest is skipped by nextPart
+		}
+	}
+
+	private static class StreamingFileUpload implements FileUpload {
+
+		private final String name;
+		private final String contentType;
+		private final String submittedFileName;
+		private final InputStream inputStream;
+
+		StreamingFileUpload(String name, String contentType, String submittedFileName, InputStream inputStream) {
+			this.name = name;
+			this.contentType = contentType;
+			this.submittedFileName = submittedFileName;
+			this.inputStream = inputStream;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getSubmittedFileName() {
+			return submittedFileName;
+		}
+
+		@Override
+		public long getSize() {
+			return -1;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return inputStream;
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+package org.webby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A ResponseCache holds rendered responses of requests that called <code>WebRequest.setCache</code>.
+ * It is bounded by the total size of the cached bodies (plain and gzip compressed) and evicts least recently used entries.
+ * While a response is regenerated, concurrent requests for the same key wait for it
+ * (up to waitMillis, see init parameter responseCacheWait) instead of regenerating it themselves.
+ */
+class ResponseCache {
+
+	/** The maximum number of paths whose parameter names are remembered, least recently used ones are forgotten. */
+	private static final int MAX_PATHS = 10_000;
+
+	private final long maxBytes;
+	private final long waitMillis;
+	private final Map<String, String[]> parametersByPath = new LinkedHashMap<String, String[]>(64, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+			return size() > MAX_PATHS;
+		}
+	};
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private final Map<String, CompletableFuture<Entry>> inflight = new ConcurrentHashMap<>();
+	private long bytes = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	ResponseCache(long maxBytes, long waitMillis) {
+		super();
+		this.maxBytes = maxBytes;
+		this.waitMillis = waitMillis;
+	}
+
+	/**
+	 * Returns the cache key for a request, or null if its path has never been cached.
+	 */
+	String getKey(String path, HttpServletRequest httpRequest) {
+		String[] parameterNames;
+		synchronized (parametersByPath) {
+			parameterNames = parametersByPath.get(path);
+		}
+		return parameterNames != null ? buildKey(path, parameterNames, httpRequest) : null;
+	}
+
+	private String buildKey(String path, String[] parameterNames, HttpServletRequest httpRequest) {
+		// each component is prefixed with its length, so that no two requests share a key
+		StringBuilder sb = new StringBuilder(path.length() + 16 * parameterNames.length);
+		appendComponent(sb, path);
+		for (String name : parameterNames) {
+			appendComponent(sb, name);
+			String[] values = httpRequest.getParameterValues(name);
+			sb.append(values != null ? values.length : -1).append('#');
+			if (values != null) {
+				for (String value : values) {
+					appendComponent(sb, value);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	private static void appendComponent(StringBuilder sb, String s) {
+		sb.append(s.length()).append(':').append(s);
+	}
+
+	/**
+	 * Looks up a fresh cached entry. If there is none, the caller has to generate the response
+	 * and must call <code>complete</code> with the returned lookup when done.
+	 * If another request is generating the same response, this method waits for it.
+	 */
+	Lookup lookup(String key) {
+		Entry entry = getFresh(key);
+		if (entry != null) {
+			hits.increment();
+			return new Lookup(key, entry, null);
+		}
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> leader = inflight.putIfAbsent(key, future);
+		if (leader == null) {
+			misses.increment();
+			return new Lookup(key, null, future);
+		}
+		if (waitMillis > 0) {
+			try {
+				entry = leader.get(waitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (TimeoutException | ExecutionException ex) {
+				// generate it ourselves
+			}
+		}
+		if (entry != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		// the leader keeps its future, only it wakes up the requests waiting for it
+		return new Lookup(key, entry, null);
+	}
+
+	/**
+	 * Stores a generated response (or nothing, if entry is null) and, if the lookup
+	 * was the one generating it, wakes up the requests waiting for it.
+	 */
+	void complete(Lookup lookup, Entry entry) {
+		if (entry != null) {
+			put(lookup.key, entry);
+		}
+		if (lookup.future != null) {
+			inflight.remove(lookup.key, lookup.future);
+			lookup.future.complete(entry);
+		}
+	}
+
+	/**
+	 * Returns the key under which a response is stored, and remembers the
+	 * parameter names for the path, so that later requests can be looked up.
+	 */
+	String register(String path, String[] parameterNames, HttpServletRequest httpRequest) {
+		synchronized (parametersByPath) {
+			parametersByPath.put(path, parameterNames);
+		}
+		return buildKey(path, parameterNames, httpRequest);
+	}
+
+	private synchronized Entry getFresh(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired()) {
+			remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Stores a generated response that was not looked up before.
+	 */
+	synchronized void put(String key, Entry entry) {
+		if (entry.size() > maxBytes) {
+			return;
+		}
+		remove(key);
+		entries.put(key, entry);
+		entry.cached = true;
+		bytes += entry.size();
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			eldest.cached = false;
+			bytes -= eldest.size();
+			evictions.increment();
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			old.cached = false;
+			bytes -= old.size();
+		}
+	}
+
+	/**
+	 * Returns the gzip compressed body of an entry, compressing it on first use.
+	 * The compressed body counts towards the size of the cache while the entry is cached.
+	 */
+	byte[] getGzipBody(Entry entry) throws IOException {
+		byte[] b = entry.gzipBody;
+		if (b != null) {
+			return b;
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(entry.body.length / 4 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(buf)) {
+			gz.write(entry.body);
+		}
+		b = buf.toByteArray();
+		synchronized (this) {
+			if (entry.gzipBody != null) {
+				return entry.gzipBody;
+			}
+			entry.gzipBody = b;
+			if (entry.cached) {
+				bytes += b.length;
+				evict();
+			}
+		}
+		return b;
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * The result of <code>lookup</code>: the cached entry, or null if the response has to be generated.
+	 */
+	static class Lookup {
+
+		final String key;
+		final Entry entry;
+		// set if this lookup generates the response that other requests wait for
+		private final CompletableFuture<Entry> future;
+
+		private Lookup(String key, Entry entry, CompletableFuture<Entry> future) {
+			this.key = key;
+			this.entry = entry;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * A cached response: status, headers (but no cookies) and body.
+	 */
+	static class Entry {
+
+		/** Headers that are set when a cached entry is sent, so they are not stored. */
+		private static final String[] SENT_HEADERS = { "Content-Type", "Content-Length", "Content-Encoding", "Vary" };
+
+		final int status;
+		final String contentType;
+		final byte[] body;
+		final Map<String, List<String>> headers = new LinkedHashMap<>();
+		private final long expiresAt;
+		private volatile byte[] gzipBody = null;
+		// guarded by the cache
+		private boolean cached = false;
+
+		Entry(String contentType, byte[] body, int ttlSeconds, HttpServletResponse httpResponse) {
+			this.status = httpResponse.getStatus();
+			this.contentType = contentType;
+			this.body = body;
+			this.expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds);
+			for (String name : httpResponse.getHeaderNames()) {
+				if (!isSentHeader(name)) {
+					headers.put(name, new ArrayList<>(httpResponse.getHeaders(name)));
+				}
+			}
+		}
+
+		private static boolean isSentHeader(String name) {
+			for (String sentHeader : SENT_HEADERS) {
+				if (sentHeader.equalsIgnoreCase(name)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean isExpired() {
+			return System.nanoTime() - expiresAt > 0;
+		}
+
+		private long size() {
+			byte[] gz = gzipBody;
+			return body.length + (gz != null ? gz.length : 0);
+		}
+	}
+
+}
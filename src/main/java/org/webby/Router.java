@@ -0,0 +1,198 @@
+package org.webby;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Router dispatches requests to handlers by HTTP method and path.
+ * Routes are registered at startup, typically in the App constructor:
+ * <pre>
+ * public MyApp(AppContext context) throws Exception {
+ *   context.getRouter().get("/users/{id}", req -&gt; showUser(req, req.getPathVariable("id")));
+ *   context.getRouter().post("/users", this::createUser);
+ * }
+ * </pre>
+ * Patterns consist of literal segments and <code>{name}</code> placeholders,
+ * which match exactly one path segment. Literal segments take precedence 
+ * over placeholders: a placeholder is only tried if no route matches through the literal.
+ * Each node of the segment trie is tried at most once per lookup, so a lookup costs
+ * at most the number of nodes, never more. Empty path segments are ignored.
+ * Routes may be registered for any HTTP method, e.g. PUT, DELETE or PATCH.
+ * Requests that match no route are passed to <code>App.serve</code>.
+ * 
+ * @see AppContext#getRouter()
+ */
+public class Router {
+
+	private static final String ANY_METHOD = "*";
+
+	private final Node root = new Node();
+
+	/**
+	 * Registers a handler for GET requests.
+	 */
+	public Router get(String pattern, Handler handler) {
+		return route("GET", pattern, handler);
+	}
+
+	/**
+	 * Registers a handler for POST requests.
+	 */
+	public Router post(String pattern, Handler handler) {
+		return route("POST", pattern, handler);
+	}
+
+	/**
+	 * Registers a handler for PUT requests.
+	 */
+	public Router put(String pattern, Handler handler) {
+		return route("PUT", pattern, handler);
+	}
+
+	/**
+	 * Registers a handler for DELETE requests.
+	 */
+	public Router delete(String pattern, Handler handler) {
+		return route("DELETE", pattern, handler);
+	}
+
+	/**
+	 * Registers a handler for a HTTP method, or for all methods if method is "*".
+	 * Throws an Exception if the route is already registered.
+	 */
+	public synchronized Router route(String method, String pattern, Handler handler) {
+		Node node = root;
+		List<String> names = new ArrayList<>();
+		for (String segment : split(pattern)) {
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1);
+				if (name.isEmpty() || names.contains(name)) {
+					throw new IllegalArgumentException("invalid placeholder \"" + segment + "\" in route \"" + pattern + "\"");
+				}
+				names.add(name);
+				if (node.param == null) {
+					node.param = new Node();
+				}
+				node = node.param;
+			} else {
+				node = node.literals.computeIfAbsent(segment, k -> new Node());
+			}
+		}
+		if (node.handlers.containsKey(method)) {
+			throw new IllegalArgumentException("route " + method + " \"" + pattern + "\" already registered");
+		}
+		node.handlers.put(method, new Route(method + " " + pattern, handler, names.toArray(new String[names.size()])));
+		return this;
+	}
+
+	/**
+	 * Returns true if no route is registered.
+	 */
+	public boolean isEmpty() {
+		return root.isEmpty();
+	}
+
+	/**
+	 * Finds the route for a request, or null if no route matches.
+	 */
+	Match match(String method, String path) {
+		List<String> segments = split(path);
+		// values[i] is the value of the i-th placeholder on the current branch
+		String[] values = new String[segments.size()];
+		Route route = match(root, segments, 0, 0, method, values);
+		if (route == null) {
+			return null;
+		}
+		Map<String, String> variables;
+		if (route.names.length == 0) {
+			variables = Collections.emptyMap();
+		} else {
+			variables = new HashMap<>();
+			for (int i = 0; i < route.names.length; i++) {
+				variables.put(route.names[i], values[i]);
+			}
+		}
+		return new Match(route.name, route.handler, variables);
+	}
+
+	/**
+	 * Matches the segments from index on below node; params is the number of placeholders above it.
+	 * A node has one parent, so this visits each node at most once. A failed branch leaves
+	 * values beyond params to be overwritten by the next branch, nothing has to be truncated.
+	 */
+	private Route match(Node node, List<String> segments, int index, int params, String method, String[] values) {
+		if (index == segments.size()) {
+			Route route = node.handlers.get(method);
+			return route != null ? route : node.handlers.get(ANY_METHOD);
+		}
+		String segment = segments.get(index);
+		Node literal = node.literals.get(segment);
+		if (literal != null) {
+			Route route = match(literal, segments, index + 1, params, method, values);
+			if (route != null) {
+				return route;
+			}
+		}
+		if (node.param != null) {
+			values[params] = segment;
+			return match(node.param, segments, index + 1, params + 1, method, values);
+		}
+		return null;
+	}
+
+	private static List<String> split(String path) {
+		List<String> segments = new ArrayList<>();
+		int start = 0;
+		int n = path.length();
+		for (int i = 0; i <= n; i++) {
+			if (i == n || path.charAt(i) == '/') {
+				if (i > start) {
+					segments.add(path.substring(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return segments;
+	}
+
+	private static class Node {
+
+		final Map<String, Node> literals = new HashMap<>();
+		Node param = null;
+		final Map<String, Route> handlers = new HashMap<>();
+
+		boolean isEmpty() {
+			return literals.isEmpty() && param == null && handlers.isEmpty();
+		}
+	}
+
+	private static class Route {
+
+		final String name;
+		final Handler handler;
+		final String[] names;
+
+		Route(String name, Handler handler, String[] names) {
+			this.name = name;
+			this.handler = handler;
+			this.names = names;
+		}
+	}
+
+	static class Match {
+
+		final String route;
+		final Handler handler;
+		final Map<String, String> variables;
+
+		Match(String route, Handler handler, Map<String, String> variables) {
+			this.route = route;
+			this.handler = handler;
+			this.variables = variables;
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.webby;
+
+import java.util.Map;
+
+/**
+ * A SessionStore keeps session data outside the container's HttpSession,
+ * so that sessions do not depend on sticky load balancing.
+ * It is selected with the init parameter "sessionStore": "memory", "file"
+ * or the name of a class implementing this interface, which must have
+ * a constructor that has a AppContext argument.
+ * With "cookie", there is no SessionStore: the session data is kept in the signed session cookie.
+ * Sessions are identified by a signed session cookie. Session data is loaded
+ * on first access and written back at the end of a request, if it was modified.
+ * Implementations must be thread-safe.
+ *
+ * @see MemorySessionStore
+ * @see FileSessionStore
+ */
+public interface SessionStore {
+
+	/**
+	 * Returns the data of a session, or null if not found or expired.
+	 * Loading a session counts as an access, i.e. it resets its idle time.
+	 * The returned map belongs to the caller.
+	 */
+	Map<String, Object> load(String sessionId);
+
+	/**
+	 * Creates or replaces the data of a session.
+	 */
+	void save(String sessionId, Map<String, Object> data);
+
+	/**
+	 * Deletes a session. If the session does not exist, this method does nothing.
+	 */
+	void delete(String sessionId);
+
+	/**
+	 * Called when the servlet is destroyed.
+	 */
+	void destroy();
+
+}
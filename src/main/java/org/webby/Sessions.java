@@ -0,0 +1,306 @@
+package org.webby;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Sessions holds the session configuration: the SessionStore and
+ * the name and signing key of the session cookie.
+ * With a SessionStore, a session cookie value is "&lt;id&gt;.&lt;signature&gt;", with a HMAC-SHA256 signature,
+ * so that clients cannot guess or forge session ids.
+ * Without a SessionStore (sessionStore "cookie"), the session data itself is the cookie value,
+ * either signed ("&lt;data&gt;.&lt;signature&gt;") or encrypted with AES-GCM.
+ * Such a session expires maxAgeSeconds after its cookie was issued; the cookie is issued again
+ * when the session is modified, or when half of maxAgeSeconds has passed.
+ */
+class Sessions {
+
+	static final String DEFAULT_COOKIE_NAME = "WEBBYSESSION";
+	private static final String HMAC = "HmacSHA256";
+	private static final int MAX_COOKIE_SIZE = 4096;
+	private static final int GCM_IV_SIZE = 12;
+	private static final int GCM_TAG_BITS = 128;
+	private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder BASE64_DECODER = Base64.getUrlDecoder();
+
+	private final SessionStore store;
+	private final String cookieName;
+	private final SecretKeySpec key;
+	private final SecretKeySpec encryptionKey;
+	private final long maxAgeSeconds;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Creates the configuration for sessions in a SessionStore.
+	 */
+	Sessions(SessionStore store, String cookieName, byte[] secret) {
+		this(store, cookieName, secret, 0, false);
+	}
+
+	/**
+	 * Creates the configuration for sessions in a SessionStore or, if store is null, in the session cookie.
+	 */
+	Sessions(SessionStore store, String cookieName, byte[] secret, long maxAgeSeconds, boolean encrypt) {
+		super();
+		this.store = store;
+		this.cookieName = cookieName;
+		this.key = new SecretKeySpec(secret, HMAC);
+		// a separate key, derived from the secret
+		this.encryptionKey = encrypt ? new SecretKeySpec(hmac("webby-session-encryption".getBytes(StandardCharsets.US_ASCII)), "AES") : null;
+		this.maxAgeSeconds = maxAgeSeconds;
+	}
+
+	/**
+	 * Returns the SessionStore, or null if sessions are stored in the session cookie.
+	 */
+	SessionStore getStore() {
+		return store;
+	}
+
+	String getCookieName() {
+		return cookieName;
+	}
+
+	/**
+	 * Returns a new random session id.
+	 */
+	String newId() {
+		byte[] id = new byte[16];
+		random.nextBytes(id);
+		return BASE64.encodeToString(id);
+	}
+
+	/**
+	 * Returns the cookie value for a session id.
+	 */
+	String sign(String id) {
+		return id + "." + BASE64.encodeToString(hmac(id.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	/**
+	 * Returns the session id of a cookie value, or null if the signature is invalid.
+	 */
+	String verify(String cookieValue) {
+		int dot = cookieValue.lastIndexOf('.');
+		if (dot <= 0) {
+			return null;
+		}
+		String id = cookieValue.substring(0, dot);
+		byte[] signature;
+		try {
+			signature = BASE64_DECODER.decode(cookieValue.substring(dot + 1));
+		} catch (IllegalArgumentException ex) {
+			return null;
+		}
+		// constant time comparison
+		return MessageDigest.isEqual(signature, hmac(id.getBytes(StandardCharsets.US_ASCII))) ? id : null;
+	}
+
+	/**
+	 * Returns the cookie value for session data.
+	 * Supported values are String, Integer, Long, Double and Boolean.
+	 */
+	String encode(Map<String, Object> data) {
+		byte[] payload = serialize(data, System.currentTimeMillis() / 1000L);
+		String value;
+		if (encryptionKey != null) {
+			byte[] iv = new byte[GCM_IV_SIZE];
+			random.nextBytes(iv);
+			try {
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+				byte[] encrypted = Arrays.copyOf(iv, GCM_IV_SIZE + cipher.getOutputSize(payload.length));
+				cipher.doFinal(payload, 0, payload.length, encrypted, GCM_IV_SIZE);
+				value = BASE64.encodeToString(encrypted);
+			} catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("cannot encrypt session: " + ex, ex);
+			}
+		} else {
+			String data64 = BASE64.encodeToString(payload);
+			value = data64 + "." + BASE64.encodeToString(hmac(data64.getBytes(StandardCharsets.US_ASCII)));
+		}
+		if (cookieName.length() + value.length() + 1 > MAX_COOKIE_SIZE) {
+			throw new IllegalStateException("session cookie too large: " + value.length() + " bytes, browsers accept " + MAX_COOKIE_SIZE + " bytes");
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the session data of a cookie value, or null if it is invalid or expired.
+	 */
+	Decoded decode(String cookieValue) {
+		byte[] payload;
+		try {
+			if (encryptionKey != null) {
+				byte[] encrypted = BASE64_DECODER.decode(cookieValue);
+				if (encrypted.length <= GCM_IV_SIZE) {
+					return null;
+				}
+				Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+				cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, encrypted, 0, GCM_IV_SIZE));
+				payload = cipher.doFinal(encrypted, GCM_IV_SIZE, encrypted.length - GCM_IV_SIZE);
+			} else {
+				int dot = cookieValue.lastIndexOf('.');
+				if (dot <= 0) {
+					return null;
+				}
+				String data64 = cookieValue.substring(0, dot);
+				byte[] signature = BASE64_DECODER.decode(cookieValue.substring(dot + 1));
+				if (!MessageDigest.isEqual(signature, hmac(data64.getBytes(StandardCharsets.US_ASCII)))) {
+					return null;
+				}
+				payload = BASE64_DECODER.decode(data64);
+			}
+		} catch (IllegalArgumentException | GeneralSecurityException ex) {
+			// not base64, or not authentic
+			return null;
+		}
+		Decoded decoded;
+		try {
+			decoded = deserialize(payload);
+		} catch (IOException ex) {
+			return null;
+		}
+		long age = System.currentTimeMillis() / 1000L - decoded.issuedAt;
+		if (age < 0 || age > maxAgeSeconds) {
+			return null;
+		}
+		decoded.stale = age > maxAgeSeconds / 2;
+		return decoded;
+	}
+
+	private static byte[] serialize(Map<String, Object> data, long issuedAt) {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(buf)) {
+			out.writeLong(issuedAt);
+			for (Map.Entry<String, Object> entry : data.entrySet()) {
+				Object value = entry.getValue();
+				if (value == null) {
+					continue;
+				}
+				out.writeUTF(entry.getKey());
+				if (value instanceof String) {
+					out.writeByte('S');
+					out.writeUTF((String) value);
+				} else if (value instanceof Integer) {
+					out.writeByte('I');
+					out.writeInt((Integer) value);
+				} else if (value instanceof Long) {
+					out.writeByte('J');
+					out.writeLong((Long) value);
+				} else if (value instanceof Double) {
+					out.writeByte('D');
+					out.writeDouble((Double) value);
+				} else if (value instanceof Boolean) {
+					out.writeByte('Z');
+					out.writeBoolean((Boolean) value);
+				} else {
+					throw new IllegalArgumentException("session value \"" + entry.getKey() + "\" cannot be stored in a cookie: " + value.getClass().getName());
+				}
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return buf.toByteArray();
+	}
+
+	private static Decoded deserialize(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		Decoded decoded = new Decoded(in.readLong());
+		while (in.available() > 0) {
+			String key = in.readUTF();
+			Object value;
+			switch (in.readByte()) {
+				case 'S':
+					value = in.readUTF();
+					break;
+				case 'I':
+					value = in.readInt();
+					break;
+				case 'J':
+					value = in.readLong();
+					break;
+				case 'D':
+					value = in.readDouble();
+					break;
+				case 'Z':
+					value = in.readBoolean();
+					break;
+				default:
+					throw new IOException("invalid session value type");
+			}
+			decoded.data.put(key, value);
+		}
+		return decoded;
+	}
+
+	private byte[] hmac(byte[] data) {
+		try {
+			// Mac instances are not thread-safe, and cheap to create
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(key);
+			return mac.doFinal(data);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("cannot compute " + HMAC + ": " + ex, ex);
+		}
+	}
+
+	/**
+	 * Session data decoded from a cookie.
+	 */
+	static class Decoded {
+
+		final Map<String, Object> data = new HashMap<>();
+		final long issuedAt;
+		boolean stale = false;
+
+		Decoded(long issuedAt) {
+			this.issuedAt = issuedAt;
+		}
+	}
+
+	/**
+	 * Returns a new random secret, for when no secret is configured.
+	 */
+	static byte[] newSecret() {
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		return secret;
+	}
+
+	/**
+	 * Runs a task periodically on a daemon thread, at most every minute,
+	 * or more often for short idle timeouts.
+	 */
+	static ScheduledExecutorService startSweeper(String threadName, Runnable task, int maxIdleSeconds) {
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, Math.min(60, maxIdleSeconds));
+		sweeper.scheduleWithFixedDelay(task, period, period, TimeUnit.SECONDS);
+		return sweeper;
+	}
+
+}
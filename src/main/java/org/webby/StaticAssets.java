@@ -0,0 +1,381 @@
+package org.webby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletContext;
+
+/**
+ * StaticAssets serves the files of a directory under a path prefix, see init parameter staticPath.
+ * Files are cached in memory, files of at least staticMapMinSize bytes as memory-mapped buffers;
+ * files larger than 2 GB cannot be mapped and are sent from the file.
+ * The cache is bounded by the total size of the cached files and evicts least recently used ones.
+ * A cached file is reloaded when its modification time or length changes. Mapped files are
+ * reference counted like in <code>MappedFileCache</code>: an evicted or outdated file is unmapped
+ * when the last request sending it is done. Symbolic links are followed only within the directory.
+ * <p>
+ * In templates, it is available as <code>$assets</code>: <code>$assets.url("css/site.css")</code>
+ * returns a fingerprinted URL like <code>/myApp/static/css/site.3f2a9c1b5e7d0a44.css</code>,
+ * which changes with the content of the file, so that it can be cached forever by browsers.
+ * URLs assume that WebbyServlet is mapped to "/*".
+ */
+public class StaticAssets {
+
+	private static final int HASH_LENGTH = 16;
+	private static final Map<String, String> MIME_TYPES = new HashMap<>();
+
+	static {
+		MIME_TYPES.put("css", "text/css; charset=utf-8");
+		MIME_TYPES.put("js", "text/javascript; charset=utf-8");
+		MIME_TYPES.put("mjs", "text/javascript; charset=utf-8");
+		MIME_TYPES.put("json", "application/json");
+		MIME_TYPES.put("map", "application/json");
+		MIME_TYPES.put("html", "text/html; charset=utf-8");
+		MIME_TYPES.put("txt", "text/plain; charset=utf-8");
+		MIME_TYPES.put("xml", "application/xml");
+		MIME_TYPES.put("svg", "image/svg+xml");
+		MIME_TYPES.put("png", "image/png");
+		MIME_TYPES.put("jpg", "image/jpeg");
+		MIME_TYPES.put("jpeg", "image/jpeg");
+		MIME_TYPES.put("gif", "image/gif");
+		MIME_TYPES.put("webp", "image/webp");
+		MIME_TYPES.put("avif", "image/avif");
+		MIME_TYPES.put("ico", "image/x-icon");
+		MIME_TYPES.put("woff", "font/woff");
+		MIME_TYPES.put("woff2", "font/woff2");
+		MIME_TYPES.put("ttf", "font/ttf");
+		MIME_TYPES.put("wasm", "application/wasm");
+		MIME_TYPES.put("pdf", "application/pdf");
+		MIME_TYPES.put("mp4", "video/mp4");
+		MIME_TYPES.put("webm", "video/webm");
+	}
+
+	private final ServletContext servletContext;
+	private final Path root;
+	private volatile Path realRoot = null;
+	private final String urlPrefix;
+	private final long maxBytes;
+	private final long mapMinSize;
+	private final LinkedHashMap<String, Asset> entries = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	StaticAssets(ServletContext servletContext, File directory, String staticPath, long maxBytes, long mapMinSize) {
+		super();
+		this.servletContext = servletContext;
+		this.root = directory.toPath().toAbsolutePath().normalize();
+		this.urlPrefix = servletContext.getContextPath() + staticPath + "/";
+		this.maxBytes = maxBytes;
+		this.mapMinSize = mapMinSize;
+	}
+
+	/**
+	 * Returns the fingerprinted URL of a file, e.g. "/myApp/static/css/site.3f2a9c1b5e7d0a44.css"
+	 * for "css/site.css". If the file does not exist, the URL is returned without fingerprint.
+	 */
+	public String url(String path) throws IOException {
+		if (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		Asset asset = lookup(path);
+		return urlPrefix + (asset != null ? fingerprint(path, asset.hash) : path);
+	}
+
+	/**
+	 * Returns the name of a path with its fingerprint, e.g. "css/site.3f2a9c1b5e7d0a44.css".
+	 */
+	static String fingerprint(String path, String hash) {
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		if (dot <= slash + 1) {
+			return path + "." + hash;
+		}
+		return path.substring(0, dot) + "." + hash + path.substring(dot);
+	}
+
+	/**
+	 * Returns the fingerprint of a path like "css/site.3f2a9c1b5e7d0a44.css", or null if there is none.
+	 */
+	static String getFingerprint(String path) {
+		int end = fingerprintEnd(path);
+		return end >= 0 ? path.substring(end - HASH_LENGTH, end) : null;
+	}
+
+	/**
+	 * Returns a path without its fingerprint, e.g. "css/site.css" for "css/site.3f2a9c1b5e7d0a44.css".
+	 */
+	static String stripFingerprint(String path) {
+		int end = fingerprintEnd(path);
+		return end >= 0 ? path.substring(0, end - HASH_LENGTH - 1) + path.substring(end) : path;
+	}
+
+	private static int fingerprintEnd(String path) {
+		int slash = path.lastIndexOf('/');
+		int dot = path.lastIndexOf('.');
+		// the fingerprint is the last name segment, or the one before the extension
+		for (int end : new int[] { path.length(), dot }) {
+			int start = end - HASH_LENGTH;
+			if (start - 1 > slash + 1 && path.charAt(start - 1) == '.' && isHex(path, start, end)) {
+				return end;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isHex(String s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the current version of a file, loading it if it is not cached or has changed,
+	 * or null if there is no such file. Its content must not be used, see <code>acquire</code>.
+	 */
+	Asset lookup(String path) throws IOException {
+		return lookup(path, false);
+	}
+
+	/**
+	 * Returns the current version of a file like <code>lookup</code>, for sending it.
+	 * The caller must <code>release</code> it when done, so that a mapped file is not unmapped before.
+	 */
+	Asset acquire(String path) throws IOException {
+		return lookup(path, true);
+	}
+
+	private Asset lookup(String path, boolean retain) throws IOException {
+		Path file;
+		BasicFileAttributes attributes;
+		try {
+			file = resolve(path);
+			if (file == null) {
+				return null;
+			}
+			attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException ex) {
+			remove(path);
+			return null;
+		}
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		synchronized (this) {
+			Asset asset = entries.get(path);
+			if (asset != null && asset.lastModified == lastModified && asset.length == attributes.size()) {
+				hits.increment();
+				if (retain) {
+					// the cache still holds its reference
+					asset.retain();
+				}
+				return asset;
+			}
+		}
+		misses.increment();
+		Asset asset = load(file, lastModified, attributes.size());
+		if (retain) {
+			asset.retain();
+		}
+		put(path, asset);
+		return asset;
+	}
+
+	/**
+	 * Returns the real path of a file in the directory, or null if it is outside,
+	 * also through a symbolic link. Throws NoSuchFileException if there is no such file.
+	 */
+	private Path resolve(String path) throws IOException {
+		if (path.isEmpty() || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+			return null;
+		}
+		Path file = root.resolve(path).normalize();
+		if (!file.startsWith(root) || file.equals(root)) {
+			return null;
+		}
+		Path realRoot = this.realRoot;
+		if (realRoot == null) {
+			realRoot = root.toRealPath();
+			this.realRoot = realRoot;
+		}
+		file = file.toRealPath();
+		return file.startsWith(realRoot) && !file.equals(realRoot) ? file : null;
+	}
+
+	private Asset load(Path file, long lastModified, long length) throws IOException {
+		ByteBuffer content;
+		byte[] body = null;
+		MappedFileCache.Mapping mapping = null;
+		if (length > Integer.MAX_VALUE) {
+			// too large to map: sent from the file, and identified by length and modification time instead of content
+			content = ByteBuffer.wrap((length + ":" + lastModified).getBytes(StandardCharsets.UTF_8));
+		} else if (length >= mapMinSize) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				// one reference, for the cache
+				mapping = new MappedFileCache.Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), length, lastModified);
+			}
+			content = mapping.slice(0, length);
+		} else {
+			body = Files.readAllBytes(file);
+			content = ByteBuffer.wrap(body);
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		digest.update(content.duplicate());
+		StringBuilder hash = new StringBuilder(HASH_LENGTH);
+		for (byte b : digest.digest()) {
+			hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			if (hash.length() == HASH_LENGTH) {
+				break;
+			}
+		}
+		return new Asset(getContentType(file.getFileName().toString()), body, mapping, file, body != null ? body.length : length, lastModified, hash.toString());
+	}
+
+	private String getContentType(String name) {
+		int dot = name.lastIndexOf('.');
+		String type = dot >= 0 ? MIME_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT)) : null;
+		if (type == null) {
+			type = servletContext.getMimeType(name);
+		}
+		return type != null ? type : "application/octet-stream";
+	}
+
+	private synchronized void put(String path, Asset asset) {
+		if (asset.length > maxBytes) {
+			// served, but not cached
+			remove(path);
+			asset.release();
+			return;
+		}
+		remove(path);
+		entries.put(path, asset);
+		bytes += asset.length;
+		Iterator<Asset> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Asset eldest = it.next();
+			it.remove();
+			bytes -= eldest.length;
+			eldest.release();
+			evictions.increment();
+		}
+	}
+
+	private synchronized void remove(String path) {
+		Asset old = entries.remove(path);
+		if (old != null) {
+			bytes -= old.length;
+			old.release();
+		}
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * A cached file. Its content is in body, or in a memory-mapped file if body is null,
+	 * or only in the file if it is too large to map.
+	 */
+	static class Asset {
+
+		final String contentType;
+		final byte[] body;
+		private final MappedFileCache.Mapping mapping;
+		final Path file;
+		final long length;
+		final long lastModified;
+		final String hash;
+		private volatile byte[] gzipBody = null;
+
+		Asset(String contentType, byte[] body, MappedFileCache.Mapping mapping, Path file, long length, long lastModified, String hash) {
+			this.contentType = contentType;
+			this.body = body;
+			this.mapping = mapping;
+			this.file = file;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+
+		/**
+		 * Returns the content of a mapped file, as a buffer of its own for each caller.
+		 * It must not be used after <code>release</code>.
+		 */
+		ByteBuffer getContent() {
+			return mapping.slice(0, length);
+		}
+
+		boolean isMapped() {
+			return mapping != null;
+		}
+
+		private void retain() {
+			if (mapping != null) {
+				mapping.retain();
+			}
+		}
+
+		/**
+		 * Releases an asset returned by <code>acquire</code>.
+		 */
+		void release() {
+			if (mapping != null) {
+				mapping.release();
+			}
+		}
+
+		/**
+		 * Returns the gzip compressed body of an in-memory file, compressing it on first use.
+		 */
+		byte[] getGzipBody() throws IOException {
+			byte[] b = gzipBody;
+			if (b == null) {
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(body.length / 4 + 64);
+				try (GZIPOutputStream gz = new GZIPOutputStream(buf)) {
+					gz.write(body);
+				}
+				b = buf.toByteArray();
+				gzipBody = b;
+			}
+			return b;
+		}
+	}
+
+}
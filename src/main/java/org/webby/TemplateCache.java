@@ -0,0 +1,95 @@
+package org.webby;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.ResourceCacheImpl;
+
+/**
+ * A TemplateCache is the Velocity resource cache used by WebbyServlet.
+ * It counts cache hits, misses and reloads and allows to invalidate 
+ * single templates, see <code>TemplateWatcher</code>.
+ */
+public class TemplateCache extends ResourceCacheImpl {
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder reloads = new LongAdder();
+
+	@Override
+	public void initialize(RuntimeServices rs) {
+		super.initialize(rs);
+		rs.setApplicationAttribute(TemplateCache.class.getName(), this);
+	}
+
+	@Override
+	public Resource get(Object key) {
+		Resource resource = super.get(key);
+		if (resource != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return resource;
+	}
+
+	/**
+	 * Removes a template (and any #include/#parse content) from the cache,
+	 * so that it is loaded again on next access.
+	 * The name is relative to the template path, e.g. "user/list.vm".
+	 */
+	public void invalidate(String name) {
+		name = normalize(name);
+		Iterator<Object> keys = enumerateKeys();
+		while (keys.hasNext()) {
+			Object key = keys.next();
+			// velocity cache keys are the resource type (one digit) followed by the name as requested
+			String s = key.toString();
+			if (s.length() > 1 && normalize(s.substring(1)).equals(name)) {
+				if (remove(key) != null) {
+					reloads.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a template name without leading "/" or "./", e.g. "user/list.vm" for "/user/list.vm",
+	 * as the file resource loader finds the same file for both.
+	 */
+	static String normalize(String name) {
+		int start = 0;
+		while (true) {
+			if (name.startsWith("/", start)) {
+				start++;
+			} else if (name.startsWith("./", start)) {
+				start += 2;
+			} else {
+				return name.substring(start);
+			}
+		}
+	}
+
+	/**
+	 * Removes all templates from the cache.
+	 */
+	public void invalidateAll() {
+		reloads.add(cache.size());
+		clear();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getReloads() {
+		return reloads.sum();
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.webby;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TemplateWatcher watches the template directory (including sub directories)
+ * and invalidates changed templates in the <code>TemplateCache</code>.
+ */
+class TemplateWatcher implements Runnable {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final Path root;
+	private final TemplateCache cache;
+	private final WatchService watchService;
+	private final Thread thread;
+
+	TemplateWatcher(Path root, TemplateCache cache) throws IOException {
+		super();
+		this.root = root;
+		this.cache = cache;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		registerAll(root);
+		this.thread = new Thread(this, "webby-template-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	void stop() {
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			logger.warn("cannot close watch service: " + ex, ex);
+		}
+	}
+
+	private void registerAll(Path dir) throws IOException {
+		try (Stream<Path> dirs = Files.walk(dir)) {
+			for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+				d.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						logger.info("template watch overflow, invalidating all templates");
+						cache.invalidateAll();
+						continue;
+					}
+					Path file = dir.resolve((Path) event.context());
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+						try {
+							registerAll(file);
+						} catch (IOException ex) {
+							logger.warn("cannot watch template directory " + file + ": " + ex, ex);
+						}
+						continue;
+					}
+					String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+					if (logger.isDebugEnabled()) {
+						logger.debug("template " + name + " changed (" + event.kind() + ")");
+					}
+					cache.invalidate(name);
+				}
+				key.reset();
+			}
+		} catch (ClosedWatchServiceException ex) {
+			// stopped
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,193 @@
+package org.webby;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A TemplateWriter encodes rendered template output as UTF-8
+ * directly into an OutputStream. It is reused across requests,
+ * see <code>reset</code>.
+ * If a flush marker is set, the output is flushed to the client once
+ * the marker (e.g. "&lt;/head&gt;") has been written, so browsers can start
+ * fetching assets before the rest of the page is rendered.
+ */
+class TemplateWriter extends Writer {
+
+	/** At least a surrogate pair must fit, it is encoded as a whole. */
+	private static final int MIN_BUFFER_SIZE = 2;
+
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars;
+	private final ByteBuffer bytes;
+	private final char[] flushMarker;
+	private final int[] markerFallback;
+	private OutputStream out = null;
+	private int markerIndex = 0;
+
+	TemplateWriter(int bufferSize, String flushMarker) {
+		super();
+		bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+		this.encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.chars = CharBuffer.allocate(bufferSize);
+		this.bytes = ByteBuffer.allocate((int) Math.ceil(bufferSize * (double) encoder.maxBytesPerChar()));
+		this.flushMarker = flushMarker != null && !flushMarker.isEmpty() ? flushMarker.toCharArray() : null;
+		this.markerFallback = this.flushMarker != null ? fallback(this.flushMarker) : null;
+	}
+
+	/**
+	 * Returns the Knuth-Morris-Pratt failure function of a marker: for each prefix length i + 1,
+	 * the length of its longest proper prefix that is also its suffix, where a mismatch continues.
+	 */
+	private static int[] fallback(char[] marker) {
+		int[] fallback = new int[marker.length];
+		int k = 0;
+		for (int i = 1; i < marker.length; i++) {
+			while (k > 0 && marker[i] != marker[k]) {
+				k = fallback[k - 1];
+			}
+			if (marker[i] == marker[k]) {
+				k++;
+			}
+			fallback[i] = k;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Prepares this writer for writing to a new OutputStream.
+	 */
+	void reset(OutputStream out) {
+		this.out = out;
+		this.markerIndex = flushMarker != null ? 0 : -1;
+		encoder.reset();
+		chars.clear();
+		bytes.clear();
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (!chars.hasRemaining()) {
+			drain(false);
+		}
+		chars.put((char) c);
+		if (markerIndex >= 0) {
+			scanMarker((char) c);
+		}
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (markerIndex >= 0) {
+			for (int i = 0; i < len; i++) {
+				write(cbuf[off + i]);
+			}
+			return;
+		}
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				drain(false);
+			}
+			int n = Math.min(len, chars.remaining());
+			chars.put(cbuf, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (markerIndex >= 0) {
+			for (int i = 0; i < len; i++) {
+				write(str.charAt(off + i));
+			}
+			return;
+		}
+		while (len > 0) {
+			if (!chars.hasRemaining()) {
+				drain(false);
+			}
+			int n = Math.min(len, chars.remaining());
+			chars.put(str, off, off + n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void scanMarker(char c) throws IOException {
+		// e.g. "aab" in "aaab": after "aa" and a mismatch, "a" still matches
+		while (markerIndex > 0 && c != flushMarker[markerIndex]) {
+			markerIndex = markerFallback[markerIndex - 1];
+		}
+		if (c == flushMarker[markerIndex]) {
+			markerIndex++;
+			if (markerIndex == flushMarker.length) {
+				// marker complete: send what we have and stop scanning
+				markerIndex = -1;
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Encodes all buffered chars and writes them to the OutputStream.
+	 */
+	private void drain(boolean endOfInput) throws IOException {
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, endOfInput);
+			writeBytes();
+			if (result.isUnderflow()) {
+				break;
+			}
+		}
+		if (endOfInput) {
+			while (encoder.flush(bytes).isOverflow()) {
+				writeBytes();
+			}
+			writeBytes();
+			encoder.reset();
+		}
+		// keep an unfinished surrogate pair for the next round
+		chars.compact();
+	}
+
+	private void writeBytes() throws IOException {
+		if (bytes.position() > 0) {
+			out.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain(false);
+		out.flush();
+	}
+
+	/**
+	 * Writes all remaining output, but does not close the OutputStream.
+	 */
+	void finish() throws IOException {
+		if (out == null) {
+			return;
+		}
+		drain(true);
+		out.flush();
+		out = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+}
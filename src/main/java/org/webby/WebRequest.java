@@ -2,8 +2,10 @@ package org.webby;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import javax.servlet.http.Cookie;
 
@@ -35,6 +37,16 @@ public interface WebRequest {
 	 */
 	String getPath();
 
+	/**
+	 * Returns a named path variable of the matched route, or throws an Exception if not found.
+	 */
+	String getPathVariable(String name);
+
+	/**
+	 * Returns a named path variable of the matched route, or a default value if not found.
+	 */
+	String getPathVariable(String name, String defaultValue);
+
 	/**
 	 * Returns true if the HTTP request contains a named parameter, otherwise false.
 	 */
@@ -55,11 +67,72 @@ public interface WebRequest {
 	 */
 	String[] getParameterValues(String name);
 
+	/**
+	 * Returns a named int parameter, or throws an Exception if the parameter is not found or not an int.
+	 */
+	int getIntParameter(String name);
+
+	/**
+	 * Returns a named int parameter, or a default value if the parameter is not found or not an int.
+	 */
+	int getIntParameter(String name, int defaultValue);
+
+	/**
+	 * Returns a named long parameter, or throws an Exception if the parameter is not found or not a long.
+	 */
+	long getLongParameter(String name);
+
+	/**
+	 * Returns a named long parameter, or a default value if the parameter is not found or not a long.
+	 */
+	long getLongParameter(String name, long defaultValue);
+
+	/**
+	 * Returns a named double parameter, or throws an Exception if the parameter is not found or not a double.
+	 */
+	double getDoubleParameter(String name);
+
+	/**
+	 * Returns a named double parameter, or a default value if the parameter is not found or not a double.
+	 */
+	double getDoubleParameter(String name, double defaultValue);
+
+	/**
+	 * Returns a named boolean parameter ("true", "on" or "1" for true, "false", "off" or "0" for false),
+	 * or throws an Exception if the parameter is not found or not a boolean.
+	 */
+	boolean getBooleanParameter(String name);
+
+	/**
+	 * Returns a named boolean parameter ("true", "on" or "1" for true, "false", "off" or "0" for false),
+	 * or a default value if the parameter is not found or not a boolean.
+	 */
+	boolean getBooleanParameter(String name, boolean defaultValue);
+
+	/**
+	 * Returns a named enum parameter, or throws an Exception if the parameter is not found or not an enum constant name.
+	 */
+	<E extends Enum<E>> E getEnumParameter(String name, Class<E> enumType);
+
+	/**
+	 * Returns a named enum parameter, or a default value if the parameter is not found or not an enum constant name.
+	 */
+	<E extends Enum<E>> E getEnumParameter(String name, Class<E> enumType, E defaultValue);
+
 	/**
 	 * Returns a file upload paramter or null.
 	 */
 	FileUpload findFileUpload(String name) throws IOException;
 
+	/**
+	 * Returns a reader that parses a multipart/form-data request body while it arrives.
+	 * Use this instead of <code>findFileUpload</code> for large uploads; the servlet must then be
+	 * declared without multipart-config, so that the container does not buffer the upload.
+	 * Limits are set with the init parameters "multipartMaxParts", "multipartMaxPartSize" and "multipartMaxSize".
+	 * Throws an Exception if the request is not a multipart request or is too large.
+	 */
+	MultipartReader getMultipartReader() throws IOException;
+
 	// attributes
 
 	/**
@@ -81,6 +154,9 @@ public interface WebRequest {
 
 	/**
 	 * Sets (or overwrites) a session atribute.
+	 * If a SessionStore is configured, only putSession and removeSession mark the session
+	 * as modified: changes to a mutable session value must be stored again with putSession.
+	 * With sessionStore "cookie", values must be String, Integer, Long, Double or Boolean.
 	 */
 	void putSession(String key, Object value);
 
@@ -100,7 +176,7 @@ public interface WebRequest {
 	void removeSession(String key);
 
 	/**
-	 * Kills the http session. If no HTTP session exists, this method does nothing. 
+	 * Kills the session. If no session exists, this method does nothing. 
 	 */
 	void killSession();
 
@@ -121,6 +197,14 @@ public interface WebRequest {
 	 */
 	void addCookie(String name, String value, int maxAgeSeconds, boolean secure);
 
+	/**
+	 * Adds a cookie with all Set-Cookie attributes.
+	 * A negative maxAgeSeconds means a session cookie, path, domain and sameSite
+	 * ("Strict", "Lax" or "None") may be null.
+	 * Throws an Exception if name or value contain invalid characters.
+	 */
+	void addCookie(String name, String value, int maxAgeSeconds, boolean secure, boolean httpOnly, String path, String domain, String sameSite);
+
 	/**
 	 * Returns all cookies that were added for this request.
 	 */
@@ -133,6 +217,28 @@ public interface WebRequest {
 	 */
 	boolean hasResponse();
 
+	// response cache
+
+	/**
+	 * Caches the response of this GET request for some seconds, so that later
+	 * requests with the same path and the same values for the named parameters
+	 * are answered from the cache, without calling the app.
+	 * Only template, json and content responses without cookies are cached, with their status and headers,
+	 * and only if the init parameter "responseCacheSize" (bytes) is set. Requests for a response that
+	 * is being generated wait for it up to "responseCacheWait" milliseconds (default 10000).
+	 */
+	void setCache(int ttlSeconds, String... parameterNames);
+
+	/**
+	 * Returns the response cache time-to-live in seconds, may be 0 if not set.
+	 */
+	int getCacheTtl();
+
+	/**
+	 * Returns the parameter names that are part of the response cache key, may be null if not set.
+	 */
+	String[] getCacheParameterNames();
+
 	// model
 
 	/**
@@ -152,6 +258,7 @@ public interface WebRequest {
 
 	/**
 	 * Returns the model as a <code>java.util.Map</code>.
+	 * The map is used as template context as is, so #set in a template writes to it.
 	 */
 	Map<String, Object> getModel();
 
@@ -174,11 +281,37 @@ public interface WebRequest {
 	 */
 	void setJson(String json);
 
+	/**
+	 * Sets the json text, already encoded as UTF-8.
+	 */
+	void setJson(byte[] utf8Json);
+
+	/**
+	 * Sets the json text, already encoded as UTF-8.
+	 * The buffer's content between position and limit is sent.
+	 */
+	void setJson(ByteBuffer utf8Json);
+
+	/**
+	 * Sets a json writer that streams the json text into the response.
+	 */
+	void setJson(JsonWriter jsonWriter);
+
 	/**
 	 * Returns the json text, may be null if not set.
 	 */
 	String getJson();
 
+	/**
+	 * Returns the UTF-8 encoded json text, may be null if not set.
+	 */
+	ByteBuffer getJsonBytes();
+
+	/**
+	 * Returns the json writer, may be null if not set.
+	 */
+	JsonWriter getJsonWriter();
+
 	// content response
 
 	/**
@@ -196,11 +329,34 @@ public interface WebRequest {
 	 */
 	void setTextContent(String text);
 
+	/**
+	 * Sets a content response that is streamed into the response by a content writer.
+	 * The content writer is called after all headers and cookies are set.
+	 * The content length may be -1 if unknown. If an attachment name is given,
+	 * the content is sent with content-disposition attachment.
+	 */
+	void setContent(ContentWriter contentWriter, String contentType, long contentLength, String attachmentName);
+
 	/**
 	 * Returns the content bytes, may be null if not set.
 	 */
 	byte[] getContentBytes();
 
+	/**
+	 * Returns the content writer, may be null if not set.
+	 */
+	ContentWriter getContentWriter();
+
+	/**
+	 * Returns the content length of a content writer response, -1 if unknown.
+	 */
+	long getContentLength();
+
+	/**
+	 * Returns the attachment name of a content writer response, may be null if not set.
+	 */
+	String getContentAttachmentName();
+
 	/**
 	 * Returns the content type, may be null if not set.
 	 */
@@ -238,6 +394,21 @@ public interface WebRequest {
 	 */
 	boolean isDownloadDeleteAfterDownload();
 
+	// events response
+
+	/**
+	 * Sets a server-sent events response. The connection stays open
+	 * and receives all events broadcast to the given channels, 
+	 * see <code>AppContext.getEventHub()</code>.
+	 * The WebbyServlet must be declared with async-supported.
+	 */
+	void setEvents(String... channels);
+
+	/**
+	 * Returns the event channels, may be null if not set.
+	 */
+	String[] getEventChannels();
+
 	// redirect response
 
 	/**
@@ -250,6 +421,23 @@ public interface WebRequest {
 	 */
 	String getRedirect();
 
+	// async response
+
+	/**
+	 * Defers the response until the completion stage has completed.
+	 * The app may set the response (template, json, ...) from any thread 
+	 * before completing the stage. If the stage completes exceptionally, 
+	 * an error 500 is sent. If it does not complete within the servlet's 
+	 * "asyncTimeout" (milliseconds, default 30000), an error 503 is sent.
+	 * The WebbyServlet must be declared with async-supported.
+	 */
+	void setAsync(CompletionStage<?> completion);
+
+	/**
+	 * Returns the async completion stage, may be null if not set.
+	 */
+	CompletionStage<?> getAsync();
+
 	// error response
 
 	/**
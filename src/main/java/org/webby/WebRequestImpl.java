@@ -2,11 +2,18 @@ package org.webby;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -19,25 +26,56 @@ public class WebRequestImpl implements WebRequest {
 	private final String method;
 	private final String path;
 	private final HttpServletRequest httpRequest;
+	// volatile: read by the timeout of an async request while the app may be setting it
+	private volatile String route = null;
+	private Map<String, String> pathVariables = Collections.emptyMap();
+	private Map<String, String[]> parameters = null;
+	private Map<String, Object> parsedParameters = null;
+	private long multipartMaxParts = -1;
+	private long multipartMaxPartSize = -1;
+	private long multipartMaxSize = -1;
+	private MultipartReader multipartReader = null;
 	// cookies
+	private Map<String, String> cookieValues = null;
 	private List<Cookie> addedCookies = new ArrayList<>();
+	private Map<Cookie, String> addedCookieHeaders = new IdentityHashMap<>();
+	// session store
+	private Sessions sessions = null;
+	private boolean sessionLoaded = false;
+	private String sessionId = null;
+	private Map<String, Object> sessionData = null;
+	private boolean sessionNew = false;
+	private boolean sessionDirty = false;
+	// response cache
+	private ResponseCache.Lookup cacheLookup = null;
+	private int cacheTtl = 0;
+	private String[] cacheParameterNames = null;
 	// model
 	private Map<String, Object> model = new HashMap<>();
 	// template response
 	private String template = null;
 	// json response
 	private String json = null;
+	private ByteBuffer jsonBytes = null;
+	private JsonWriter jsonWriter = null;
 	// content response
 	private byte[] contentBytes = null;
 	private String contentType = null;
+	private ContentWriter contentWriter = null;
+	private long contentLength = -1;
+	private String contentAttachmentName = null;
 	// download response
 	private File downloadFile = null;
 	private String downloadName = null;
 	private String downloadContentType = null;
 	private boolean downloadAsAttachment = false;
 	private boolean downloadDeleteAfterDownload = false;
+	// events response
+	private String[] eventChannels = null;
 	// redirect response
 	private String redirect = null;
+	// async response
+	private CompletionStage<?> async = null;
 	// error response
 	private int errorStatus = 0;
 	private String errorMessage = null;
@@ -71,14 +109,50 @@ public class WebRequestImpl implements WebRequest {
 		return path;
 	}
 
+	/**
+	 * Sets the route that matched this request, e.g. "GET /users/{id}".
+	 */
+	public void setRoute(String route) {
+		this.route = route;
+	}
+
+	/**
+	 * Returns the route that matched this request, or null if it was passed to <code>App.serve</code>.
+	 */
+	public String getRoute() {
+		return route;
+	}
+
+	public void setPathVariables(Map<String, String> pathVariables) {
+		this.pathVariables = pathVariables;
+	}
+
+	@Override
+	public String getPathVariable(String name) {
+		String v = pathVariables.get(name);
+		if (v == null) {
+			throw new RuntimeException("path variable \"" + name + "\" not found in request");
+		}
+		return v;
+	}
+
+	@Override
+	public String getPathVariable(String name, String defaultValue) {
+		String v = pathVariables.get(name);
+		if (v == null) {
+			v = defaultValue;
+		}
+		return v;
+	}
+
 	@Override
 	public boolean hasParameter(String name) {
-		return httpRequest.getParameter(name) != null;
+		return findParameter(name) != null;
 	}
 
 	@Override
 	public String getParameter(String name) {
-		String v = httpRequest.getParameter(name);
+		String v = findParameter(name);
 		if (v == null) {
 			throw new RuntimeException("parameter \"" + name + "\" not found in request");
 		}
@@ -87,7 +161,7 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public String getParameter(String name, String defaultValue) {
-		String v = httpRequest.getParameter(name);
+		String v = findParameter(name);
 		if (v == null) {
 			v = defaultValue;
 		}
@@ -96,13 +170,268 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public String[] getParameterValues(String name) {
-		String[] values = httpRequest.getParameterValues(name);
+		String[] values = getParameters().get(name);
 		if (values == null) {
 			values = new String[0];
 		}
 		return values;
 	}
 
+	@Override
+	public int getIntParameter(String name) {
+		Long v = findLongParameter(name);
+		if (v == null || v.longValue() != v.intValue()) {
+			throw invalidParameter(name, "an int");
+		}
+		return v.intValue();
+	}
+
+	@Override
+	public int getIntParameter(String name, int defaultValue) {
+		Long v = findLongParameter(name);
+		return v != null && v.longValue() == v.intValue() ? v.intValue() : defaultValue;
+	}
+
+	@Override
+	public long getLongParameter(String name) {
+		Long v = findLongParameter(name);
+		if (v == null) {
+			throw invalidParameter(name, "a long");
+		}
+		return v;
+	}
+
+	@Override
+	public long getLongParameter(String name, long defaultValue) {
+		Long v = findLongParameter(name);
+		return v != null ? v : defaultValue;
+	}
+
+	@Override
+	public double getDoubleParameter(String name) {
+		Double v = findDoubleParameter(name);
+		if (v == null) {
+			throw invalidParameter(name, "a double");
+		}
+		return v;
+	}
+
+	@Override
+	public double getDoubleParameter(String name, double defaultValue) {
+		Double v = findDoubleParameter(name);
+		return v != null ? v : defaultValue;
+	}
+
+	@Override
+	public boolean getBooleanParameter(String name) {
+		Boolean v = findBooleanParameter(name);
+		if (v == null) {
+			throw invalidParameter(name, "a boolean");
+		}
+		return v;
+	}
+
+	@Override
+	public boolean getBooleanParameter(String name, boolean defaultValue) {
+		Boolean v = findBooleanParameter(name);
+		return v != null ? v : defaultValue;
+	}
+
+	@Override
+	public <E extends Enum<E>> E getEnumParameter(String name, Class<E> enumType) {
+		E v = findEnumParameter(name, enumType);
+		if (v == null) {
+			throw invalidParameter(name, "a " + enumType.getSimpleName());
+		}
+		return v;
+	}
+
+	@Override
+	public <E extends Enum<E>> E getEnumParameter(String name, Class<E> enumType, E defaultValue) {
+		E v = findEnumParameter(name, enumType);
+		return v != null ? v : defaultValue;
+	}
+
+	// parameters are read from the container once and parsed values are kept,
+	// lookups of missing or invalid parameters do not throw (and catch) exceptions
+
+	private Map<String, String[]> getParameters() {
+		if (parameters == null) {
+			parameters = httpRequest.getParameterMap();
+		}
+		return parameters;
+	}
+
+	private String findParameter(String name) {
+		String[] values = getParameters().get(name);
+		return values != null && values.length > 0 ? values[0] : null;
+	}
+
+	private RuntimeException invalidParameter(String name, String type) {
+		String v = findParameter(name);
+		if (v == null) {
+			return new RuntimeException("parameter \"" + name + "\" not found in request");
+		}
+		return new RuntimeException("parameter \"" + name + "\" is not " + type + ": \"" + v + "\"");
+	}
+
+	private <T> T findParsedParameter(String name, Class<T> type) {
+		if (parsedParameters == null) {
+			return null;
+		}
+		Object v = parsedParameters.get(name);
+		return type.isInstance(v) ? type.cast(v) : null;
+	}
+
+	private <T> T putParsedParameter(String name, T value) {
+		if (value != null) {
+			if (parsedParameters == null) {
+				parsedParameters = new HashMap<>();
+			}
+			parsedParameters.put(name, value);
+		}
+		return value;
+	}
+
+	private Long findLongParameter(String name) {
+		Long v = findParsedParameter(name, Long.class);
+		if (v != null) {
+			return v;
+		}
+		String s = findParameter(name);
+		return s != null ? putParsedParameter(name, parseLong(s)) : null;
+	}
+
+	private Double findDoubleParameter(String name) {
+		Double v = findParsedParameter(name, Double.class);
+		if (v != null) {
+			return v;
+		}
+		String s = findParameter(name);
+		if (s == null || !isDoubleText(s)) {
+			return null;
+		}
+		// a decimal number is always valid for Double.valueOf, no NumberFormatException is thrown
+		return putParsedParameter(name, Double.valueOf(s));
+	}
+
+	private Boolean findBooleanParameter(String name) {
+		Boolean v = findParsedParameter(name, Boolean.class);
+		if (v != null) {
+			return v;
+		}
+		String s = findParameter(name);
+		if (s == null) {
+			return null;
+		}
+		if (s.equals("true") || s.equals("on") || s.equals("1")) {
+			return putParsedParameter(name, Boolean.TRUE);
+		}
+		if (s.equals("false") || s.equals("off") || s.equals("0")) {
+			return putParsedParameter(name, Boolean.FALSE);
+		}
+		return null;
+	}
+
+	private <E extends Enum<E>> E findEnumParameter(String name, Class<E> enumType) {
+		E v = findParsedParameter(name, enumType);
+		if (v != null) {
+			return v;
+		}
+		String s = findParameter(name);
+		if (s == null) {
+			return null;
+		}
+		for (E e : enumType.getEnumConstants()) {
+			if (e.name().equals(s)) {
+				return putParsedParameter(name, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a decimal long, returns null if s is not a valid long.
+	 * Any number of leading zeros is accepted, like Long.parseLong does.
+	 */
+	private static Long parseLong(String s) {
+		int n = s.length();
+		if (n == 0) {
+			return null;
+		}
+		int i = 0;
+		boolean negative = false;
+		char first = s.charAt(0);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			i++;
+			if (n == 1) {
+				return null;
+			}
+		}
+		long result = 0;
+		for (; i < n; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return null;
+			}
+			// accumulate negatively, so that Long.MIN_VALUE fits
+			if (result < (Long.MIN_VALUE + digit) / 10) {
+				return null;
+			}
+			result = result * 10 - digit;
+		}
+		if (!negative) {
+			if (result == Long.MIN_VALUE) {
+				return null;
+			}
+			result = -result;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if s is a decimal number: an optional sign, digits with an optional
+	 * fraction (at least one digit in all) and an optional exponent, e.g. "-1.5", ".5" or "1e-3".
+	 */
+	private static boolean isDoubleText(String s) {
+		int n = s.length();
+		int i = 0;
+		if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+			i++;
+		}
+		int digits = 0;
+		for (; i < n && isDigit(s.charAt(i)); i++) {
+			digits++;
+		}
+		if (i < n && s.charAt(i) == '.') {
+			for (i++; i < n && isDigit(s.charAt(i)); i++) {
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+			i++;
+			if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+				i++;
+			}
+			int exponentStart = i;
+			for (; i < n && isDigit(s.charAt(i)); i++) {
+				// skip
+			}
+			if (i == exponentStart) {
+				return false;
+			}
+		}
+		return i == n;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
 	@Override
 	public FileUpload findFileUpload(String name) throws IOException {
 		try {
@@ -113,6 +442,27 @@ public class WebRequestImpl implements WebRequest {
 		}
 	}
 
+	public void setMultipartLimits(long maxParts, long maxPartSize, long maxSize) {
+		this.multipartMaxParts = maxParts;
+		this.multipartMaxPartSize = maxPartSize;
+		this.multipartMaxSize = maxSize;
+	}
+
+	@Override
+	public MultipartReader getMultipartReader() throws IOException {
+		if (multipartReader == null) {
+			String boundary = MultipartReader.getBoundary(httpRequest.getContentType());
+			if (boundary == null) {
+				throw new IOException("not a multipart request: " + httpRequest.getContentType());
+			}
+			if (multipartMaxSize >= 0 && httpRequest.getContentLengthLong() > multipartMaxSize) {
+				throw new IOException("multipart: request larger than " + multipartMaxSize + " bytes");
+			}
+			multipartReader = new MultipartReader(httpRequest.getInputStream(), boundary, multipartMaxParts, multipartMaxPartSize, multipartMaxSize);
+		}
+		return multipartReader;
+	}
+
 	// attributes
 
 	@Override
@@ -137,14 +487,37 @@ public class WebRequestImpl implements WebRequest {
 
 	// session
 
+	/**
+	 * Routes the session methods through a SessionStore instead of the HttpSession.
+	 */
+	public void setSessions(Sessions sessions) {
+		this.sessions = sessions;
+	}
+
 	@Override
 	public void putSession(String key, Object value) {
+		if (sessions != null) {
+			loadSession(true).put(key, value);
+			sessionDirty = true;
+			return;
+		}
 		HttpSession httpSession = httpRequest.getSession(true);
 		httpSession.setAttribute(key, value);
 	}
 
 	@Override
 	public Object getSession(String key) {
+		if (sessions != null) {
+			Map<String, Object> data = loadSession(false);
+			if (data == null) {
+				throw new RuntimeException("session value \"" + key + "\" not found: no session");
+			}
+			Object v = data.get(key);
+			if (v == null) {
+				throw new RuntimeException("session value \"" + key + "\" not found in session");
+			}
+			return v;
+		}
 		HttpSession httpSession = httpRequest.getSession(false);
 		if (httpSession == null) {
 			throw new RuntimeException("session value \"" + key + "\" not found: no session");
@@ -158,6 +531,11 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public Object getSession(String key, Object defaultValue) {
+		if (sessions != null) {
+			Map<String, Object> data = loadSession(false);
+			Object v = data != null ? data.get(key) : null;
+			return v != null ? v : defaultValue;
+		}
 		HttpSession httpSession = httpRequest.getSession(false);
 		if (httpSession == null) {
 			return defaultValue;
@@ -171,6 +549,13 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public void removeSession(String key) {
+		if (sessions != null) {
+			Map<String, Object> data = loadSession(false);
+			if (data != null && data.remove(key) != null) {
+				sessionDirty = true;
+			}
+			return;
+		}
 		HttpSession httpSession = httpRequest.getSession(false);
 		if (httpSession != null) {
 			httpSession.removeAttribute(key);
@@ -179,12 +564,84 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public void killSession() {
+		if (sessions != null) {
+			loadSession(false);
+			if (sessionId != null && sessions.getStore() != null) {
+				sessions.getStore().delete(sessionId);
+			}
+			if (getCookieValue(sessions.getCookieName(), null) != null || sessionNew) {
+				addSessionCookie("", 0);
+			}
+			sessionId = null;
+			sessionData = null;
+			sessionNew = false;
+			sessionDirty = false;
+			return;
+		}
 		HttpSession httpSession = httpRequest.getSession(false);
 		if (httpSession != null) {
 			httpSession.invalidate();
 		}
 	}
 
+	/**
+	 * Returns the session data, loading it on first use.
+	 * If there is no session and create is true, a new session is started.
+	 */
+	private Map<String, Object> loadSession(boolean create) {
+		if (!sessionLoaded) {
+			sessionLoaded = true;
+			String cookieValue = getCookieValue(sessions.getCookieName(), null);
+			if (cookieValue != null && sessions.getStore() == null) {
+				Sessions.Decoded decoded = sessions.decode(cookieValue);
+				if (decoded != null) {
+					sessionData = decoded.data;
+					// issue the cookie again, so that an active session does not expire
+					sessionDirty = decoded.stale;
+				}
+			} else if (cookieValue != null) {
+				String id = sessions.verify(cookieValue);
+				if (id != null) {
+					sessionData = sessions.getStore().load(id);
+					sessionId = sessionData != null ? id : null;
+				}
+			}
+		}
+		if (sessionData == null && create) {
+			sessionId = sessions.getStore() != null ? sessions.newId() : null;
+			sessionData = new HashMap<>();
+			sessionNew = true;
+		}
+		return sessionData;
+	}
+
+	/**
+	 * Writes a modified session back to the SessionStore, and adds the session cookie
+	 * if the session is new. Without a SessionStore, a modified session is written to the
+	 * session cookie. Must be called before the response is committed.
+	 */
+	public void saveSession() {
+		if (!sessionDirty) {
+			return;
+		}
+		sessionDirty = false;
+		if (sessions.getStore() == null) {
+			addSessionCookie(sessions.encode(sessionData), -1);
+			return;
+		}
+		sessions.getStore().save(sessionId, sessionData);
+		if (sessionNew) {
+			sessionNew = false;
+			addSessionCookie(sessions.sign(sessionId), -1);
+		}
+	}
+
+	private void addSessionCookie(String value, int maxAgeSeconds) {
+		String contextPath = httpRequest.getContextPath();
+		String cookiePath = contextPath == null || contextPath.isEmpty() ? "/" : contextPath;
+		addCookie(sessions.getCookieName(), value, maxAgeSeconds, httpRequest.isSecure(), true, cookiePath, null, "Lax");
+	}
+
 	// cookies
 
 	@Override
@@ -198,22 +655,104 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public String getCookieValue(String cookieName, String defaultValue) {
-		if (httpRequest.getCookies() != null) {
-			for (Cookie c : httpRequest.getCookies()) {
-				if (c.getName().equals(cookieName)) {
-					return c.getValue();
+		String value = getCookieValues().get(cookieName);
+		return value != null ? value : defaultValue;
+	}
+
+	private Map<String, String> getCookieValues() {
+		if (cookieValues == null) {
+			Cookie[] cookies = httpRequest.getCookies();
+			if (cookies == null) {
+				cookieValues = Collections.emptyMap();
+			} else {
+				cookieValues = new HashMap<>(cookies.length * 2);
+				for (Cookie c : cookies) {
+					// first one wins
+					cookieValues.putIfAbsent(c.getName(), c.getValue());
 				}
 			}
 		}
-		return defaultValue;
+		return cookieValues;
 	}
 
 	@Override
 	public void addCookie(String name, String value, int maxAgeSeconds, boolean secure) {
+		addCookie(name, value, maxAgeSeconds, secure, false, null, null, null);
+	}
+
+	@Override
+	public void addCookie(String name, String value, int maxAgeSeconds, boolean secure, boolean httpOnly, String path, String domain, String sameSite) {
+		String header = formatSetCookie(name, value, maxAgeSeconds, secure, httpOnly, path, domain, sameSite);
 		Cookie cookie = new Cookie(name, value);
 		cookie.setMaxAge(maxAgeSeconds);
 		cookie.setSecure(secure);
+		cookie.setHttpOnly(httpOnly);
+		if (path != null) {
+			cookie.setPath(path);
+		}
+		if (domain != null) {
+			cookie.setDomain(domain);
+		}
 		addedCookies.add(cookie);
+		addedCookieHeaders.put(cookie, header);
+	}
+
+	/**
+	 * Returns the Set-Cookie header value of a cookie added with <code>addCookie</code>,
+	 * or null if it was added to <code>getAddedCookies</code> directly.
+	 */
+	public String getAddedCookieHeader(Cookie cookie) {
+		return addedCookieHeaders.get(cookie);
+	}
+
+	private static String formatSetCookie(String name, String value, int maxAgeSeconds, boolean secure, boolean httpOnly, String path, String domain, String sameSite) {
+		if (name == null || name.isEmpty() || !isCookieText(name, true)) {
+			throw new IllegalArgumentException("invalid cookie name \"" + name + "\"");
+		}
+		if (value == null) {
+			value = "";
+		}
+		if (!isCookieText(value, false)) {
+			throw new IllegalArgumentException("invalid value for cookie \"" + name + "\"");
+		}
+		StringBuilder sb = new StringBuilder(name.length() + value.length() + 96);
+		sb.append(name).append('=').append(value);
+		if (maxAgeSeconds >= 0) {
+			sb.append("; Max-Age=").append(maxAgeSeconds);
+			sb.append("; Expires=");
+			// browsers that ignore Max-Age need Expires, a max age of 0 means "already expired"
+			long expires = maxAgeSeconds == 0 ? 10_000L : System.currentTimeMillis() + maxAgeSeconds * 1000L;
+			sb.append(DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(expires).atZone(ZoneOffset.UTC)));
+		}
+		if (domain != null) {
+			sb.append("; Domain=").append(domain);
+		}
+		if (path != null) {
+			sb.append("; Path=").append(path);
+		}
+		if (secure) {
+			sb.append("; Secure");
+		}
+		if (httpOnly) {
+			sb.append("; HttpOnly");
+		}
+		if (sameSite != null) {
+			sb.append("; SameSite=").append(sameSite);
+		}
+		return sb.toString();
+	}
+
+	private static boolean isCookieText(String s, boolean isName) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c <= 0x20 || c >= 0x7f || c == '"' || c == ',' || c == ';' || c == '\\') {
+				return false;
+			}
+			if (isName && "()<>@:/[]?={}".indexOf(c) >= 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -226,12 +765,18 @@ public class WebRequestImpl implements WebRequest {
 	private void resetResponses() {
 		template = null;
 		json = null;
+		jsonBytes = null;
+		jsonWriter = null;
 		contentBytes = null;
 		contentType = null;
+		contentWriter = null;
+		contentLength = -1;
+		contentAttachmentName = null;
 		downloadFile = null;
 		downloadName = null;
 		downloadContentType = null;
 		downloadDeleteAfterDownload = false;
+		eventChannels = null;
 		redirect = null;
 		errorStatus = 0;
 		errorMessage = null;
@@ -239,7 +784,33 @@ public class WebRequestImpl implements WebRequest {
 
 	@Override
 	public boolean hasResponse() {
-		return template != null || json != null || contentBytes != null || downloadFile != null || redirect != null || errorStatus != 0;
+		return template != null || json != null || jsonBytes != null || jsonWriter != null || contentBytes != null || contentWriter != null || downloadFile != null || eventChannels != null || redirect != null || errorStatus != 0;
+	}
+
+	// response cache
+
+	@Override
+	public void setCache(int ttlSeconds, String... parameterNames) {
+		this.cacheTtl = ttlSeconds;
+		this.cacheParameterNames = parameterNames != null ? parameterNames : new String[0];
+	}
+
+	@Override
+	public int getCacheTtl() {
+		return cacheTtl;
+	}
+
+	@Override
+	public String[] getCacheParameterNames() {
+		return cacheParameterNames;
+	}
+
+	ResponseCache.Lookup getCacheLookup() {
+		return cacheLookup;
+	}
+
+	void setCacheLookup(ResponseCache.Lookup cacheLookup) {
+		this.cacheLookup = cacheLookup;
 	}
 
 	// model
@@ -298,6 +869,33 @@ public class WebRequestImpl implements WebRequest {
 		this.json = json;
 	}
 
+	@Override
+	public void setJson(byte[] utf8Json) {
+		setJson(ByteBuffer.wrap(utf8Json));
+	}
+
+	@Override
+	public void setJson(ByteBuffer utf8Json) {
+		resetResponses();
+		this.jsonBytes = utf8Json;
+	}
+
+	@Override
+	public void setJson(JsonWriter jsonWriter) {
+		resetResponses();
+		this.jsonWriter = jsonWriter;
+	}
+
+	@Override
+	public ByteBuffer getJsonBytes() {
+		return jsonBytes;
+	}
+
+	@Override
+	public JsonWriter getJsonWriter() {
+		return jsonWriter;
+	}
+
 	// content response
 
 	@Override
@@ -321,11 +919,35 @@ public class WebRequestImpl implements WebRequest {
 		this.contentType = "text/plain; charset=utf8";
 	}
 
+	@Override
+	public void setContent(ContentWriter contentWriter, String contentType, long contentLength, String attachmentName) {
+		resetResponses();
+		this.contentWriter = contentWriter;
+		this.contentType = contentType;
+		this.contentLength = contentLength;
+		this.contentAttachmentName = attachmentName;
+	}
+
 	@Override
 	public byte[] getContentBytes() {
 		return contentBytes;
 	}
 
+	@Override
+	public ContentWriter getContentWriter() {
+		return contentWriter;
+	}
+
+	@Override
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public String getContentAttachmentName() {
+		return contentAttachmentName;
+	}
+
 	@Override
 	public String getContentType() {
 		return contentType;
@@ -368,6 +990,19 @@ public class WebRequestImpl implements WebRequest {
 		return downloadDeleteAfterDownload;
 	}
 
+	// events response
+
+	@Override
+	public void setEvents(String... channels) {
+		resetResponses();
+		this.eventChannels = channels;
+	}
+
+	@Override
+	public String[] getEventChannels() {
+		return eventChannels;
+	}
+
 	// redirect response
 
 	@Override
@@ -381,6 +1016,18 @@ public class WebRequestImpl implements WebRequest {
 		return redirect;
 	}
 
+	// async response
+
+	@Override
+	public void setAsync(CompletionStage<?> completion) {
+		this.async = completion;
+	}
+
+	@Override
+	public CompletionStage<?> getAsync() {
+		return async;
+	}
+
 	// error response
 
 	@Override
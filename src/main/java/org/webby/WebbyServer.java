@@ -0,0 +1,373 @@
+package org.webby;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A WebbyServer runs a Webby app without a servlet container, on the HTTP server of the JDK.
+ * Requests are served by a WebbyServlet, so apps behave as in a container.
+ * Init parameters are set programmatically:
+ * <pre>
+ * WebbyServer server = new WebbyServer(8080, MyApp.class.getName(), new File("webapp"));
+ * server.setInitParameter("velocityCache", "watch");
+ * server.start();
+ * </pre>
+ * Templates are loaded from WEB-INF/templates of the webapp directory, unless
+ * init parameter templatePath is set. There is no HttpSession: sessions are kept in memory
+ * (init parameter sessionStore, default "memory"). Not supported: container multipart parts
+ * (use <code>WebRequest.getMultipartReader</code>), authentication and request dispatchers;
+ * <code>AsyncContext.dispatch</code> only within the context and without a query string.
+ * Non-blocking writes (a WriteListener, e.g. for server-sent events) are sent on write threads,
+ * so a stalled client holds a write thread, but not the thread that writes to it.
+ * It can also be started from the command line:
+ * <pre>
+ * java org.webby.WebbyServer &lt;port&gt; &lt;appClass&gt; &lt;webappDir&gt; [name=value ...]
+ * </pre>
+ */
+public class WebbyServer {
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+	private final int port;
+	private final File webappDir;
+	private final Map<String, String> initParameters = new HashMap<>();
+	private final Map<String, Object> contextAttributes = new HashMap<>();
+	private String contextPath = "";
+	private int threads = 64;
+	private HttpServer httpServer = null;
+	private ExecutorService executor = null;
+	private ScheduledExecutorService scheduler = null;
+	private ExecutorService writeExecutor = null;
+	private WebbyServlet servlet = null;
+
+	public WebbyServer(int port, String appClass, File webappDir) {
+		super();
+		this.port = port;
+		this.webappDir = webappDir;
+		this.initParameters.put("appClass", appClass);
+	}
+
+	/**
+	 * Sets an init parameter, e.g. "velocityCache" or "templatePath".
+	 */
+	public WebbyServer setInitParameter(String name, String value) {
+		initParameters.put(name, value);
+		return this;
+	}
+
+	/**
+	 * Sets the context path, e.g. "/myApp". Default is "" (the root).
+	 */
+	public WebbyServer setContextPath(String contextPath) {
+		this.contextPath = contextPath;
+		return this;
+	}
+
+	/**
+	 * Sets the number of request threads, default is 64.
+	 */
+	public WebbyServer setThreads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * Initializes the app and starts listening.
+	 */
+	public void start() throws IOException, ServletException {
+		long t1 = System.nanoTime();
+		// without TCP_NODELAY, chunked responses wait for delayed ACKs (about 40 ms each)
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		if (!initParameters.containsKey("sessionStore")) {
+			// there is no HttpSession: sessions are kept in memory, as in a container
+			initParameters.put("sessionStore", "memory");
+			initParameters.putIfAbsent("sessionSecret", Base64.getEncoder().encodeToString(Sessions.newSecret()));
+		}
+		File tempDir = Files.createTempDirectory("webby").toFile();
+		contextAttributes.put(ServletContext.TEMPDIR, tempDir);
+		ServletContext servletContext = newServletContext();
+		servlet = new WebbyServlet();
+		servlet.init(newServletConfig(servletContext));
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "webby-http-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger writeThreadCount = new AtomicInteger();
+		writeExecutor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "webby-write-" + writeThreadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "webby-async-timeout");
+			thread.setDaemon(true);
+			return thread;
+		});
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.setExecutor(executor);
+		httpServer.createContext(contextPath.isEmpty() ? "/" : contextPath, exchange -> handle(exchange, servletContext));
+		httpServer.start();
+		long millis = (System.nanoTime() - t1) / 1_000_000L;
+		logger.info("webby server started on port " + getPort() + " in " + millis + " ms");
+	}
+
+	/**
+	 * Returns the port the server listens on, useful if it was started on port 0.
+	 */
+	public int getPort() {
+		return httpServer != null ? httpServer.getAddress().getPort() : port;
+	}
+
+	/**
+	 * Stops listening, waits up to delaySeconds for running requests and destroys the app.
+	 */
+	public void stop(int delaySeconds) {
+		httpServer.stop(delaySeconds);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		scheduler.shutdownNow();
+		servlet.destroy();
+		writeExecutor.shutdown();
+	}
+
+	private void handle(HttpExchange exchange, ServletContext servletContext) {
+		EmbeddedResponse response = new EmbeddedResponse(exchange, writeExecutor);
+		EmbeddedRequest request = new EmbeddedRequest(exchange, servletContext, contextPath, response, this::dispatch);
+		if (!request.isInContext()) {
+			// the HTTP server matches contexts by prefix, "/app" also gets "/apple"
+			try {
+				response.sendError(404);
+				response.finish();
+			} catch (IOException ex) {
+				// client gone
+			}
+			return;
+		}
+		service(request, response, request, response, null);
+	}
+
+	/**
+	 * Runs the servlet again for a dispatch of the async context, on a request thread.
+	 */
+	private void dispatch(EmbeddedAsyncContext asyncContext) {
+		executor.execute(() -> {
+			EmbeddedRequest request = asyncContext.getEmbeddedRequest();
+			request.dispatch(asyncContext.getDispatchPath());
+			service(request, asyncContext.getEmbeddedResponse(), asyncContext.getRequest(), asyncContext.getResponse(), asyncContext);
+		});
+	}
+
+	private void service(EmbeddedRequest request, EmbeddedResponse response, ServletRequest servletRequest, ServletResponse servletResponse,
+			EmbeddedAsyncContext dispatchedContext) {
+		try {
+			servlet.service(servletRequest, servletResponse);
+		} catch (Exception ex) {
+			logger.warn(request.getMethod() + " " + request.getRequestURI() + " failed: " + ex, ex);
+			if (!response.isCommitted()) {
+				try {
+					response.reset();
+					response.sendError(500, ex.toString());
+				} catch (IOException | IllegalStateException ex2) {
+					// client gone
+				}
+			}
+		}
+		EmbeddedAsyncContext asyncContext = request.getEmbeddedAsyncContext();
+		if (asyncContext != null) {
+			asyncContext.started(scheduler);
+			return;
+		}
+		if (dispatchedContext != null) {
+			// finishes the response and notifies the listeners of the dispatched context
+			dispatchedContext.dispatchReturned();
+			return;
+		}
+		try {
+			response.finish();
+		} catch (IOException ex) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("cannot finish response: " + ex);
+			}
+		}
+	}
+
+	private ServletConfig newServletConfig(ServletContext servletContext) {
+		return new ServletConfig() {
+
+			@Override
+			public String getServletName() {
+				return "webby";
+			}
+
+			@Override
+			public ServletContext getServletContext() {
+				return servletContext;
+			}
+
+			@Override
+			public String getInitParameter(String name) {
+				return initParameters.get(name);
+			}
+
+			@Override
+			public Enumeration<String> getInitParameterNames() {
+				return Collections.enumeration(initParameters.keySet());
+			}
+		};
+	}
+
+	private ServletContext newServletContext() {
+		// only what WebbyServlet and AppContext use
+		return (ServletContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ServletContext.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getContextPath":
+					return contextPath;
+				case "getRealPath":
+					return new File(webappDir, (String) args[0]).getPath();
+				case "getMimeType":
+					return URLConnection.getFileNameMap().getContentTypeFor((String) args[0]);
+				case "getResourceAsStream":
+					return getResourceAsStream((String) args[0]);
+				case "getInitParameter":
+					// there are no context init parameters, servlet init parameters are used instead
+					return null;
+				case "getInitParameterNames":
+					return Collections.emptyEnumeration();
+				case "getResource":
+					File file = new File(webappDir, (String) args[0]);
+					return file.exists() ? file.toURI().toURL() : null;
+				case "getAttribute":
+					return contextAttributes.get(args[0]);
+				case "getAttributeNames":
+					return Collections.enumeration(contextAttributes.keySet());
+				case "setAttribute":
+					contextAttributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					contextAttributes.remove(args[0]);
+					return null;
+				case "getServletContextName":
+				case "getServerInfo":
+				case "getVirtualServerName":
+					return "webby";
+				case "getMajorVersion":
+				case "getEffectiveMajorVersion":
+					return 4;
+				case "getClassLoader":
+					return WebbyServer.class.getClassLoader();
+				case "log":
+					logger.info((String) args[0], args.length > 1 && args[1] instanceof Throwable ? (Throwable) args[1] : null);
+					return null;
+				case "toString":
+					return "WebbyServer context " + contextPath;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					// e.g. getRequestDispatcher or addServlet: not available, like in a container without them
+					return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private InputStream getResourceAsStream(String path) throws IOException {
+		File file = new File(webappDir, path);
+		return file.isFile() ? new FileInputStream(file) : null;
+	}
+
+	/**
+	 * Returns an implementation of a servlet interface whose methods do nothing and return
+	 * null, false, 0 or an empty collection, the base of the embedded request and response wrappers.
+	 * It is only reached for what the embedded server has not got, e.g. authentication.
+	 */
+	static <T> T defaults(Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(WebbyServer.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "toString":
+					return type.getSimpleName();
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		}));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == Enumeration.class) {
+			return Collections.emptyEnumeration();
+		} else if (type == Set.class) {
+			return Collections.emptySet();
+		} else if (type == Map.class) {
+			return Collections.emptyMap();
+		} else if (type == Collection.class || type == List.class) {
+			return Collections.emptyList();
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: java org.webby.WebbyServer <port> <appClass> <webappDir> [name=value ...]");
+			System.exit(1);
+		}
+		WebbyServer server = new WebbyServer(Integer.parseInt(args[0]), args[1], new File(args[2]));
+		for (int i = 3; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("invalid init parameter \"" + args[i] + "\", must be name=value");
+			}
+			server.setInitParameter(args[i].substring(0, eq), args[i].substring(eq + 1));
+		}
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5), "webby-shutdown"));
+	}
+
+}
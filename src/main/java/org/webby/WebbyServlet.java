@@ -1,13 +1,43 @@
 package org.webby;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -19,15 +49,53 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class WebbyServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
+	private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_RANGES = 16;
+	/** The maximum number of idle writers (or pipe buffers) kept per pool, more are left to the GC after a burst. */
+	private static final int MAX_POOLED_WRITERS = 64;
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 	private App app = null;
+	private Router router = null;
+	private EventHub eventHub = null;
+	private int eventQueueSize = 64;
+	private ScheduledExecutorService scheduler = null;
 	private VelocityEngine velocityEngine = null;
+	private Context globalContext = null;
+	private TemplateCache templateCache = null;
+	private TemplateWatcher templateWatcher = null;
+	private int templateBufferSize = 8 * 1024;
+	private String templateFlushMarker = null;
+	private final Queue<TemplateWriter> templateWriters = new ArrayBlockingQueue<>(MAX_POOLED_WRITERS);
+	private final Queue<TemplateWriter> jsonWriters = new ArrayBlockingQueue<>(MAX_POOLED_WRITERS);
+	private final Queue<byte[]> pipeBuffers = new ArrayBlockingQueue<>(MAX_POOLED_WRITERS);
+	private Compression compression = null;
+	private ResponseCache responseCache = null;
+	private long multipartMaxParts = -1;
+	private long multipartMaxPartSize = -1;
+	private long multipartMaxSize = -1;
+	private long asyncTimeoutMillis = 30_000L;
+	private ExecutorService dispatchExecutor = null;
+	private Semaphore dispatchPermits = null;
+	private Sessions sessions = null;
+	private long slowRequestMillis = 3000;
+	private Metrics metrics = null;
+	private String metricsPath = null;
+	private StaticAssets staticAssets = null;
+	private String staticPrefix = null;
+	private long staticMaxAge = 0;
+	private MappedFileCache mappedFiles = null;
 
 	@Override
 	public void init(ServletConfig servletConfig) throws ServletException {
@@ -36,117 +104,775 @@ public class WebbyServlet extends HttpServlet {
 			// app
 			ServletContext servletContext = servletConfig.getServletContext();
 			AppContextImpl appContext = new AppContextImpl(servletContext);
+			appContext.putGlobal("Escaper", Escaper.class);
+			// static assets, before the app, so that it can use them
+			String staticPath = getInitParameter(servletConfig, "staticPath");
+			if (staticPath != null) {
+				String staticDirectory = getInitParameter(servletConfig, "staticDirectory");
+				if (staticDirectory == null) {
+					staticDirectory = servletContext.getRealPath(staticPath);
+					if (staticDirectory == null) {
+						throw new IllegalArgumentException("real path of staticPath \"" + staticPath + "\" not available, set init parameter staticDirectory");
+					}
+				}
+				long staticCacheSize = getLongInitParameter(servletConfig, "staticCacheSize", 64L * 1024 * 1024);
+				long staticMapMinSize = getLongInitParameter(servletConfig, "staticMapMinSize", 256L * 1024);
+				this.staticAssets = new StaticAssets(servletContext, new File(staticDirectory), staticPath, staticCacheSize, staticMapMinSize);
+				this.staticPrefix = staticPath + "/";
+				this.staticMaxAge = getLongInitParameter(servletConfig, "staticMaxAge", 0);
+				appContext.putGlobal("assets", staticAssets);
+			}
 			String appClass = servletConfig.getInitParameter("appClass");
 			Constructor<?> ctor = Class.forName(appClass).getConstructor(AppContext.class);
 			this.app = (App) ctor.newInstance(appContext);
+			this.router = appContext.getRouter().isEmpty() ? null : appContext.getRouter();
+			this.eventHub = appContext.getEventHub();
+			// sessions
+			String sessionStore = getInitParameter(servletConfig, "sessionStore");
+			if (sessionStore != null) {
+				String sessionCookie = getInitParameter(servletConfig, "sessionCookie");
+				String sessionSecret = getInitParameter(servletConfig, "sessionSecret");
+				byte[] secret;
+				if (sessionSecret != null) {
+					secret = sessionSecret.getBytes(StandardCharsets.UTF_8);
+				} else {
+					logger.warn("no sessionSecret configured, using a random secret: sessions will not survive a restart and cannot be shared between nodes");
+					secret = Sessions.newSecret();
+				}
+				if (sessionCookie == null) {
+					sessionCookie = Sessions.DEFAULT_COOKIE_NAME;
+				}
+				if ("cookie".equals(sessionStore)) {
+					// no server-side state: the session is the (signed or encrypted) cookie
+					long sessionTimeout = getLongInitParameter(servletConfig, "sessionTimeout", 1800);
+					boolean encrypt = "true".equals(getInitParameter(servletConfig, "sessionEncrypt"));
+					this.sessions = new Sessions(null, sessionCookie, secret, sessionTimeout, encrypt);
+				} else {
+					SessionStore store = newSessionStore(sessionStore, servletConfig, appContext);
+					this.sessions = new Sessions(store, sessionCookie, secret);
+				}
+			}
 			// velocity
-			String templatePath = getServletContext().getRealPath("/WEB-INF/templates");
+			String templatePath = getInitParameter(servletConfig, "templatePath");
+			if (templatePath == null) {
+				templatePath = getServletContext().getRealPath("/WEB-INF/templates");
+			}
 			Properties velocityProperties = new Properties();
 			velocityProperties.setProperty("resource.loader", "file");
 			velocityProperties.setProperty("file.resource.loader.class", "org.apache.velocity.runtime.resource.loader.FileResourceLoader");
 			velocityProperties.setProperty("file.resource.loader.path", templatePath);
-			String velocityCache = servletConfig.getInitParameter("velocityCache");
-			if ( velocityCache == null ) {
-				velocityCache = servletContext.getInitParameter("velocityCache");
-			}
-			velocityCache = "true".equals(velocityCache) ? "true" : "false";
+			// velocityCache is "true" (cache forever), "watch" (cache until file changes) or "false"
+			String velocityCache = getInitParameter(servletConfig, "velocityCache");
+			boolean watchTemplates = "watch".equals(velocityCache);
+			velocityCache = "true".equals(velocityCache) || watchTemplates ? "true" : "false";
 			velocityProperties.setProperty("file.resource.loader.cache", velocityCache);
+			velocityProperties.setProperty("resource.manager.cache.class", TemplateCache.class.getName());
+			if (watchTemplates) {
+				velocityProperties.setProperty("resource.manager.defaultcache.size", "0");
+				// the watcher invalidates changed templates, velocity need not check them on access
+				velocityProperties.setProperty("file.resource.loader.modificationCheckInterval", "0");
+			}
+			if ("true".equals(getInitParameter(servletConfig, "templateAutoEscape"))) {
+				velocityProperties.setProperty(RuntimeConstants.EVENTHANDLER_REFERENCEINSERTION, HtmlEscapeHandler.class.getName());
+			}
 			velocityProperties.setProperty("input.encoding", "UTF-8");
 			velocityProperties.setProperty("output.encoding", "UTF-8");
 			this.velocityEngine = new VelocityEngine(velocityProperties);
+			this.velocityEngine.init();
+			this.templateCache = (TemplateCache) velocityEngine.getApplicationAttribute(TemplateCache.class.getName());
+			if (watchTemplates && templatePath != null) {
+				this.templateWatcher = new TemplateWatcher(Paths.get(templatePath), templateCache);
+				this.templateWatcher.start();
+			}
+			this.globalContext = new VelocityContext(Collections.unmodifiableMap(new HashMap<>(appContext.getGlobals())));
+			String templateBufferSize = getInitParameter(servletConfig, "templateBufferSize");
+			if (templateBufferSize != null) {
+				this.templateBufferSize = Integer.parseInt(templateBufferSize);
+			}
+			this.templateFlushMarker = getInitParameter(servletConfig, "templateFlushMarker");
+			if ("true".equals(getInitParameter(servletConfig, "templateWarmup"))) {
+				warmupTemplates(templatePath);
+			}
+			// compression
+			if ("true".equals(getInitParameter(servletConfig, "compression"))) {
+				String minSize = getInitParameter(servletConfig, "compressionMinSize");
+				String types = getInitParameter(servletConfig, "compressionTypes");
+				this.compression = new Compression(minSize != null ? Integer.parseInt(minSize) : 1024, types != null ? types : Compression.DEFAULT_TYPES);
+			}
+			// response cache
+			String responseCacheSize = getInitParameter(servletConfig, "responseCacheSize");
+			if (responseCacheSize != null) {
+				// how long requests wait for a response that is being generated, 0 to generate it again
+				long responseCacheWait = getLongInitParameter(servletConfig, "responseCacheWait", 10_000L);
+				this.responseCache = new ResponseCache(Long.parseLong(responseCacheSize), responseCacheWait);
+			}
+			// downloads
+			String downloadMapCacheSize = getInitParameter(servletConfig, "downloadMapCacheSize");
+			if (downloadMapCacheSize != null) {
+				this.mappedFiles = new MappedFileCache(Long.parseLong(downloadMapCacheSize), getLongInitParameter(servletConfig, "downloadMapMinSize", 1024L * 1024));
+			}
+			// events
+			String eventQueueSize = getInitParameter(servletConfig, "eventQueueSize");
+			if (eventQueueSize != null) {
+				this.eventQueueSize = Integer.parseInt(eventQueueSize);
+			}
+			// async timeouts and event heartbeats
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "webby-scheduler");
+				thread.setDaemon(true);
+				return thread;
+			});
+			// event connections have no timeout, the heartbeat finds those of clients that are gone
+			long eventHeartbeat = getLongInitParameter(servletConfig, "eventHeartbeat", 30);
+			if (eventHeartbeat > 0) {
+				EventHub hub = this.eventHub;
+				this.scheduler.scheduleWithFixedDelay(hub::heartbeat, eventHeartbeat, eventHeartbeat, TimeUnit.SECONDS);
+			}
+			// multipart
+			this.multipartMaxParts = getLongInitParameter(servletConfig, "multipartMaxParts", -1);
+			this.multipartMaxPartSize = getLongInitParameter(servletConfig, "multipartMaxPartSize", -1);
+			this.multipartMaxSize = getLongInitParameter(servletConfig, "multipartMaxSize", -1);
+			// async
+			String asyncTimeout = getInitParameter(servletConfig, "asyncTimeout");
+			if (asyncTimeout != null) {
+				this.asyncTimeoutMillis = Long.parseLong(asyncTimeout);
+			}
+			// metrics
+			this.slowRequestMillis = getLongInitParameter(servletConfig, "slowRequestMillis", 3000);
+			if ("true".equals(getInitParameter(servletConfig, "metrics"))) {
+				this.metrics = new Metrics((int) getLongInitParameter(servletConfig, "metricsMaxRoutes", 500));
+				this.metricsPath = getInitParameter(servletConfig, "metricsPath");
+			}
+			// dispatch
+			String dispatch = getInitParameter(servletConfig, "dispatch");
+			if ("virtual".equals(dispatch)) {
+				this.dispatchExecutor = newVirtualThreadExecutor();
+				String dispatchConcurrency = getInitParameter(servletConfig, "dispatchConcurrency");
+				if (dispatchConcurrency != null) {
+					this.dispatchPermits = new Semaphore(Integer.parseInt(dispatchConcurrency), true);
+				}
+			} else if (dispatch != null && !"container".equals(dispatch)) {
+				throw new IllegalArgumentException("unknown dispatch \"" + dispatch + "\", must be \"container\" or \"virtual\"");
+			}
 		} catch (Exception ex) {
 			throw new ServletException("init error: " + ex, ex);
 		}
 	}
 
+	private void warmupTemplates(String templatePath) throws IOException {
+		if (templatePath == null) {
+			logger.warn("cannot warm up templates: template path not available");
+			return;
+		}
+		long t1 = System.nanoTime();
+		Path root = Paths.get(templatePath);
+		List<String> names;
+		try (Stream<Path> files = Files.walk(root)) {
+			names = files.filter(f -> f.toString().endsWith(".vm") && Files.isRegularFile(f))
+					.map(f -> root.relativize(f).toString().replace(File.separatorChar, '/'))
+					.collect(Collectors.toList());
+		}
+		// parse errors are thrown and fail the servlet init
+		names.parallelStream().forEach(name -> velocityEngine.getTemplate(name, "UTF-8"));
+		long millis = (System.nanoTime() - t1) / 1_000_000L;
+		logger.info("warmed up " + names.size() + " templates in " + millis + " ms");
+	}
+
+	private SessionStore newSessionStore(String sessionStore, ServletConfig servletConfig, AppContext appContext) throws IOException, ReflectiveOperationException {
+		int sessionTimeout = (int) getLongInitParameter(servletConfig, "sessionTimeout", 1800);
+		if ("memory".equals(sessionStore)) {
+			return new MemorySessionStore(sessionTimeout);
+		}
+		if ("file".equals(sessionStore)) {
+			String sessionDirectory = getInitParameter(servletConfig, "sessionDirectory");
+			File directory = sessionDirectory != null ? new File(sessionDirectory) : new File((File) servletConfig.getServletContext().getAttribute(ServletContext.TEMPDIR), "webby-sessions");
+			return new FileSessionStore(directory, sessionTimeout);
+		}
+		Constructor<?> ctor = Class.forName(sessionStore).getConstructor(AppContext.class);
+		return (SessionStore) ctor.newInstance(appContext);
+	}
+
+	private String getInitParameter(ServletConfig servletConfig, String name) {
+		String value = servletConfig.getInitParameter(name);
+		if (value == null) {
+			value = servletConfig.getServletContext().getInitParameter(name);
+		}
+		return value;
+	}
+
+	private ExecutorService newVirtualThreadExecutor() throws ReflectiveOperationException {
+		// looked up reflectively, since virtual threads need a JDK 21 runtime
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException ex) {
+			throw new IllegalStateException("dispatch \"virtual\" needs a JDK 21 runtime, this is " + System.getProperty("java.version"), ex);
+		}
+	}
+
+	private long getLongInitParameter(ServletConfig servletConfig, String name, long defaultValue) {
+		String value = getInitParameter(servletConfig, name);
+		return value != null ? Long.parseLong(value) : defaultValue;
+	}
+
 	@Override
 	public void destroy() {
 		super.destroy();
+		if (dispatchExecutor != null) {
+			dispatchExecutor.shutdown();
+		}
+		if (templateWatcher != null) {
+			templateWatcher.stop();
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		eventHub.closeAll();
+		if (sessions != null && sessions.getStore() != null) {
+			sessions.getStore().destroy();
+		}
+		if (templateCache != null) {
+			logger.info("template cache: " + templateCache.getHits() + " hits, " + templateCache.getMisses() + " misses, " + templateCache.getReloads() + " reloads");
+		}
+		if (staticAssets != null) {
+			logger.info("static assets: " + staticAssets.getHits() + " hits, " + staticAssets.getMisses() + " misses, " + staticAssets.getEvictions() + " evictions");
+		}
+		if (mappedFiles != null) {
+			logger.info("download map cache: " + mappedFiles.getHits() + " hits, " + mappedFiles.getMisses() + " misses, " + mappedFiles.getEvictions() + " evictions");
+			mappedFiles.clear();
+		}
+		if (responseCache != null) {
+			logger.info("response cache: " + responseCache.getHits() + " hits, " + responseCache.getMisses() + " misses, " + responseCache.getEvictions() + " evictions");
+		}
 		app.destroy();
 	}
 
+	/**
+	 * Serves PUT, DELETE, PATCH and any other method like GET and POST, so that they reach
+	 * the Router and <code>App.serve</code>. HEAD, OPTIONS and TRACE are left to HttpServlet.
+	 */
+	@Override
+	protected void service(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
+		String method = httpRequest.getMethod();
+		switch (method) {
+			case "GET":
+			case "POST":
+			case "HEAD":
+			case "OPTIONS":
+			case "TRACE":
+				super.service(httpRequest, httpResponse);
+				break;
+			default:
+				doMethod(method, httpRequest, httpResponse);
+				break;
+		}
+	}
+
 	@Override
 	protected void doGet(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
-		doGetOrPost("GET", httpRequest, httpResponse);
+		doMethod("GET", httpRequest, httpResponse);
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
-		doGetOrPost("POST", httpRequest, httpResponse);
+		doMethod("POST", httpRequest, httpResponse);
 	}
 
-	private void doGetOrPost(String method, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
+	private void doMethod(String method, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
 		httpRequest.setCharacterEncoding("UTF-8");
-		String path = httpRequest.getPathInfo();
+		String pathInfo = httpRequest.getPathInfo();
 		if (logger.isTraceEnabled()) {
-			logger.trace(method + " " + path);
+			logger.trace(method + " " + pathInfo);
 		}
-		if (path == null) {
-			path = "";
+		String path = pathInfo != null ? pathInfo : "";
+		if (metrics != null) {
+			if (path.equals(metricsPath) && method.equals("GET")) {
+				sendMetrics(httpRequest, httpResponse);
+				return;
+			}
+			metrics.begin();
+			CountingResponse countingResponse = new CountingResponse(httpResponse);
+			long t1 = System.nanoTime();
+			try {
+				serveRequest(method, path, t1, httpRequest, countingResponse);
+			} catch (Throwable ex) {
+				// record it, else the in-flight gauge never goes down
+				if (countingResponse.markRecorded()) {
+					metrics.end(method + " " + path, 500, System.nanoTime() - t1, 0, countingResponse.getBytes());
+				}
+				throw ex;
+			}
+			return;
 		}
-		// serve request
-		long t1 = System.nanoTime();
+		serveRequest(method, path, System.nanoTime(), httpRequest, httpResponse);
+	}
+
+	/**
+	 * Serves a request that started at t1, and calls <code>endRequest</code> when it has been sent.
+	 */
+	private void serveRequest(String method, String path, long t1, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException {
 		WebRequestImpl req = new WebRequestImpl(method, path, httpRequest);
+		req.setMultipartLimits(multipartMaxParts, multipartMaxPartSize, multipartMaxSize);
+		if (staticAssets != null && req.isGet() && path.startsWith(staticPrefix)) {
+			req.setRoute("GET " + staticPrefix + "*");
+			try {
+				sendStaticAsset(path.substring(staticPrefix.length()), httpRequest, httpResponse);
+			} finally {
+				endRequest(method, path, req, t1, t1, httpResponse);
+			}
+			return;
+		}
+		req.setSessions(sessions);
+		if (responseCache != null && req.isGet()) {
+			String cacheKey = responseCache.getKey(path, httpRequest);
+			if (cacheKey != null) {
+				ResponseCache.Lookup lookup = responseCache.lookup(cacheKey);
+				if (lookup.entry != null) {
+					try {
+						sendCached(lookup.entry, httpRequest, httpResponse);
+					} finally {
+						endRequest(method, path, req, t1, t1, httpResponse);
+					}
+					return;
+				}
+				// we regenerate the response, see sendResponse
+				req.setCacheLookup(lookup);
+			}
+		}
+		if (dispatchExecutor != null) {
+			// the app runs only once the request is in async mode
+			serveAsync(method, path, req, done -> CompletableFuture.supplyAsync(() -> {
+				serveWithPermit(method, path, req, done);
+				return req.getAsync();
+			}, dispatchExecutor).thenCompose(async -> async != null ? async : CompletableFuture.completedFuture(null)), t1, httpRequest, httpResponse);
+			return;
+		}
+		serve(method, path, req);
+		if (req.getAsync() != null) {
+			CompletionStage<?> async = req.getAsync();
+			serveAsync(method, path, req, done -> async, t1, httpRequest, httpResponse);
+			return;
+		}
+		long t2 = System.nanoTime();
 		try {
-			app.serve(req);
+			sendResponse(method, path, req, httpRequest, httpResponse);
+		} finally {
+			endRequest(method, path, req, t1, t2, httpResponse);
+		}
+	}
+
+	private void serve(String method, String path, WebRequestImpl req) {
+		try {
+			Router.Match match = router != null ? router.match(method, path) : null;
+			if (match != null) {
+				req.setRoute(match.route);
+				req.setPathVariables(match.variables);
+				match.handler.serve(req);
+			} else {
+				app.serve(req);
+			}
 		} catch (Exception ex) {
 			logger.warn(method + " " + path + " threw exception: " + ex.getMessage(), ex);
 			req.setError(500, ex.toString());
 		}
+	}
+
+	/**
+	 * Serves a request on a dispatch thread, unless it has already timed out (done is set)
+	 * while waiting for the thread or a permit.
+	 */
+	private void serveWithPermit(String method, String path, WebRequestImpl req, AtomicBoolean done) {
+		if (dispatchPermits == null) {
+			if (!done.get()) {
+				serve(method, path, req);
+			}
+			return;
+		}
+		try {
+			dispatchPermits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			req.setError(503, "interrupted while waiting for dispatch");
+			return;
+		}
+		try {
+			if (done.get()) {
+				if (logger.isDebugEnabled()) {
+					logger.debug(method + " " + path + " timed out while waiting for a dispatch permit, skipped");
+				}
+				return;
+			}
+			serve(method, path, req);
+		} finally {
+			dispatchPermits.release();
+		}
+	}
+
+	/**
+	 * Puts the request into async mode, then starts serving it: start returns
+	 * the completion of the app, given the flag that is set once the response is sent.
+	 */
+	private void serveAsync(String method, String path, WebRequestImpl req, Function<AtomicBoolean, CompletionStage<?>> start, long t1, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+		AsyncContext asyncContext = httpRequest.startAsync(httpRequest, httpResponse);
+		// the container must not time out: the timeout can only be set before the container dispatch
+		// returns, and the response may turn out to be an event stream, which stays open
+		asyncContext.setTimeout(0);
+		AtomicBoolean done = new AtomicBoolean(false);
+		Runnable timeout = () -> {
+			if (done.compareAndSet(false, true)) {
+				logger.warn(method + " " + path + " timed out after " + asyncTimeoutMillis + " ms");
+				// the app may still be running and writing to req: the error is sent without it,
+				// and the app's result is dropped when it completes
+				long t2 = System.nanoTime();
+				try {
+					releaseCacheLookup(req);
+					sendStatus(503, "request timed out", httpResponse);
+				} catch (IOException | IllegalStateException ex) {
+					logger.warn(method + " " + path + " could not send timeout response: " + ex.getMessage());
+				} finally {
+					asyncContext.complete();
+				}
+				endRequest(method, path, req, t1, t2, httpResponse);
+			}
+		};
+		ScheduledFuture<?> timeoutTask = asyncTimeoutMillis > 0 ? scheduler.schedule(timeout, asyncTimeoutMillis, TimeUnit.MILLISECONDS) : null;
+		asyncContext.addListener(new AsyncListener() {
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				timeout.run();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				if (done.compareAndSet(false, true)) {
+					logger.warn(method + " " + path + " async error: " + event.getThrowable(), event.getThrowable());
+					releaseCacheLookup(req);
+					asyncContext.complete();
+					endRequest(method, path, req, t1, System.nanoTime(), httpResponse);
+				}
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+		CompletionStage<?> completion;
+		try {
+			completion = start.apply(done);
+		} catch (RuntimeException ex) {
+			// e.g. RejectedExecutionException after shutdown
+			CompletableFuture<Object> failed = new CompletableFuture<>();
+			failed.completeExceptionally(ex);
+			completion = failed;
+		}
+		completion.whenComplete((result, ex) -> {
+			if (done.compareAndSet(false, true)) {
+				if (timeoutTask != null) {
+					timeoutTask.cancel(false);
+				}
+				if (ex != null) {
+					logger.warn(method + " " + path + " threw exception: " + ex.getMessage(), ex);
+					req.setError(500, ex.toString());
+				}
+				completeAsync(method, path, req, t1, asyncContext, httpRequest, httpResponse);
+			}
+		});
+	}
+
+	private void completeAsync(String method, String path, WebRequestImpl req, long t1, AsyncContext asyncContext, HttpServletRequest httpRequest, HttpServletResponse httpResponse) {
+		long t2 = System.nanoTime();
+		try {
+			sendResponse(method, path, req, httpRequest, httpResponse);
+		} catch (Exception ex) {
+			logger.warn(method + " " + path + " could not send async response: " + ex.getMessage(), ex);
+		} finally {
+			// an events response stays open, it completes itself
+			if (req.getEventChannels() == null) {
+				asyncContext.complete();
+			}
+		}
+		endRequest(method, path, req, t1, t2, httpResponse);
+	}
+
+	/**
+	 * Wakes up requests waiting for the response cache entry that req was to regenerate, if any.
+	 */
+	private void releaseCacheLookup(WebRequestImpl req) {
+		if (req.getCacheLookup() != null) {
+			responseCache.complete(req.getCacheLookup(), null);
+		}
+	}
+
+	private void sendStatus(int status, String message, HttpServletResponse httpResponse) throws IOException {
+		httpResponse.setStatus(status);
+		String content = "status " + status + ": " + message + "\r\n";
+		ServletOutputStream out = httpResponse.getOutputStream();
+		out.write(content.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		httpResponse.flushBuffer();
+	}
+
+	private void sendResponse(String method, String path, WebRequestImpl req, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		ResponseCache.Lookup cacheLookup = req.getCacheLookup();
+		try {
+			if (sessions != null) {
+				// before anything is written, a new session needs its cookie
+				try {
+					req.saveSession();
+				} catch (RuntimeException ex) {
+					logger.warn(method + " " + path + " could not save session: " + ex.getMessage(), ex);
+					req.setError(500, ex.toString());
+				}
+			}
+			if (isCacheable(req, httpResponse)) {
+				ResponseCache.Entry entry = renderToEntry(req, httpResponse);
+				String key = responseCache.register(path, req.getCacheParameterNames(), httpRequest);
+				if (cacheLookup != null && key.equals(cacheLookup.key)) {
+					responseCache.complete(cacheLookup, entry);
+					cacheLookup = null;
+				} else {
+					responseCache.put(key, entry);
+				}
+				sendCached(entry, httpRequest, httpResponse);
+			} else {
+				sendUncached(path, req, httpRequest, httpResponse);
+			}
+		} finally {
+			if (cacheLookup != null) {
+				// nothing cached, release waiting requests
+				responseCache.complete(cacheLookup, null);
+			}
+		}
+	}
+
+	private boolean isCacheable(WebRequestImpl req, HttpServletResponse httpResponse) {
+		// cookies belong to one client, a response that sets them is not shared
+		if (responseCache == null || req.getCacheTtl() <= 0 || !req.isGet() || !req.getAddedCookies().isEmpty() || httpResponse.containsHeader("Set-Cookie")) {
+			return false;
+		}
+		return req.getTemplate() != null || req.getJson() != null || req.getJsonBytes() != null || req.getContentBytes() != null;
+	}
+
+	private ResponseCache.Entry renderToEntry(WebRequestImpl req, HttpServletResponse httpResponse) throws IOException {
+		if (req.getTemplate() != null) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream(templateBufferSize);
+			renderTemplate(req, body);
+			return new ResponseCache.Entry("text/html; charset=utf-8", body.toByteArray(), req.getCacheTtl(), httpResponse);
+		} else if (req.getJson() != null) {
+			return new ResponseCache.Entry("application/json", req.getJson().getBytes(StandardCharsets.UTF_8), req.getCacheTtl(), httpResponse);
+		} else if (req.getJsonBytes() != null) {
+			ByteBuffer json = req.getJsonBytes().duplicate();
+			byte[] data = new byte[json.remaining()];
+			json.get(data);
+			return new ResponseCache.Entry("application/json", data, req.getCacheTtl(), httpResponse);
+		} else {
+			return new ResponseCache.Entry(req.getContentType(), req.getContentBytes(), req.getCacheTtl(), httpResponse);
+		}
+	}
+
+	private void sendCached(ResponseCache.Entry entry, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		httpResponse.setStatus(entry.status);
+		for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+			// headers that are set on every request, e.g. by a filter, are not repeated
+			if (!httpResponse.containsHeader(header.getKey())) {
+				for (String value : header.getValue()) {
+					httpResponse.addHeader(header.getKey(), value);
+				}
+			}
+		}
+		httpResponse.setContentType(entry.contentType);
+		httpResponse.setCharacterEncoding("UTF-8");
+		String encoding = compression != null ? compression.chooseEncoding(httpRequest, entry.contentType, entry.body.length) : null;
+		if (Compression.GZIP.equals(encoding)) {
+			// compressed once, sent many times
+			byte[] body = responseCache.getGzipBody(entry);
+			httpResponse.addHeader("Vary", "Accept-Encoding");
+			httpResponse.setHeader("Content-Encoding", encoding);
+			httpResponse.setContentLength(body.length);
+			ServletOutputStream out = httpResponse.getOutputStream();
+			out.write(body);
+			out.flush();
+		} else {
+			if (encoding == null) {
+				httpResponse.setContentLength(entry.body.length);
+			}
+			OutputStream out = compression != null ? compression.open(httpResponse, encoding) : httpResponse.getOutputStream();
+			out.write(entry.body);
+			Compression.finish(out);
+		}
+		httpResponse.flushBuffer();
+	}
+
+	private void sendStaticAsset(String name, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		// a fingerprinted URL names one version of a file, browsers may cache it forever
+		String fingerprint = StaticAssets.getFingerprint(name);
+		StaticAssets.Asset asset = fingerprint != null ? staticAssets.acquire(StaticAssets.stripFingerprint(name)) : null;
+		if (asset == null) {
+			fingerprint = null;
+			asset = staticAssets.acquire(name);
+		}
+		if (asset == null) {
+			httpResponse.setStatus(404);
+			String content = "status 404: static file not found: \"" + name + "\"\r\n";
+			ServletOutputStream out = httpResponse.getOutputStream();
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			httpResponse.flushBuffer();
+			return;
+		}
+		try {
+			sendStaticAsset(asset, fingerprint, httpRequest, httpResponse);
+		} finally {
+			asset.release();
+		}
+	}
+
+	private void sendStaticAsset(StaticAssets.Asset asset, String fingerprint, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		// in-memory files are compressed once, mapped (large) files are sent as they are
+		boolean gzip = false;
+		if (compression != null) {
+			httpResponse.addHeader("Vary", "Accept-Encoding");
+			gzip = asset.body != null && Compression.GZIP.equals(compression.chooseEncoding(httpRequest, asset.contentType, asset.length));
+		}
+		String etag = "\"" + asset.hash + (gzip ? "-" + Compression.GZIP : "") + "\"";
+		httpResponse.setHeader("ETag", etag);
+		httpResponse.setDateHeader("Last-Modified", asset.lastModified);
+		if (asset.hash.equals(fingerprint)) {
+			httpResponse.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		} else {
+			// an unversioned (or outdated) URL is revalidated with the ETag
+			httpResponse.setHeader("Cache-Control", staticMaxAge > 0 ? "public, max-age=" + staticMaxAge : "no-cache");
+		}
+		if (isNotModified(httpRequest, etag, asset.lastModified)) {
+			httpResponse.setStatus(304);
+			httpResponse.flushBuffer();
+			return;
+		}
+		httpResponse.setContentType(asset.contentType);
+		ServletOutputStream out = httpResponse.getOutputStream();
+		if (gzip) {
+			byte[] body = asset.getGzipBody();
+			httpResponse.setHeader("Content-Encoding", Compression.GZIP);
+			httpResponse.setContentLength(body.length);
+			out.write(body);
+		} else if (asset.body != null) {
+			httpResponse.setContentLength(asset.body.length);
+			out.write(asset.body);
+		} else if (asset.isMapped()) {
+			httpResponse.setContentLengthLong(asset.length);
+			writeBuffer(asset.getContent(), out);
+		} else {
+			httpResponse.setContentLengthLong(asset.length);
+			pipeFileToStream(asset.file.toFile(), 0, asset.length, out);
+		}
+		out.flush();
+		httpResponse.flushBuffer();
+	}
+
+	private void sendMetrics(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		boolean json = "json".equals(httpRequest.getParameter("format"));
+		byte[] data = (json ? metrics.toJson() : metrics.toText()).getBytes(StandardCharsets.UTF_8);
+		httpResponse.setContentType(json ? "application/json" : "text/plain; charset=utf-8");
+		httpResponse.setHeader("Cache-Control", "no-store");
+		httpResponse.setContentLength(data.length);
+		ServletOutputStream out = httpResponse.getOutputStream();
+		out.write(data);
+		out.flush();
+	}
+
+	private void renderTemplate(WebRequestImpl req, OutputStream body) throws IOException {
+		// the model is used as is, not copied: model -> req -> globals
+		Context reqContext = new VelocityContext(Collections.singletonMap("req", req), globalContext);
+		VelocityContext ctx = new VelocityContext(req.getModel(), reqContext);
+		TemplateWriter out = takeWriter(templateWriters, templateFlushMarker);
+		try {
+			out.reset(body);
+			long t1 = System.nanoTime();
+			velocityEngine.mergeTemplate(req.getTemplate(), "UTF-8", ctx, out);
+			out.finish();
+			if (metrics != null) {
+				metrics.recordTemplate(req.getTemplate(), System.nanoTime() - t1);
+			}
+		} finally {
+			templateWriters.offer(out);
+		}
+	}
+
+	private TemplateWriter takeWriter(Queue<TemplateWriter> pool, String flushMarker) {
+		TemplateWriter out = pool.poll();
+		if (out == null) {
+			out = new TemplateWriter(templateBufferSize, flushMarker);
+		}
+		return out;
+	}
+
+	private void sendUncached(String path, WebRequestImpl req, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
 		// add cookies, if any
 		for (Cookie addedCookie : req.getAddedCookies()) {
-			httpResponse.addCookie(addedCookie);
+			// the header has all attributes, e.g. SameSite, that Cookie has not
+			String header = req.getAddedCookieHeader(addedCookie);
+			if (header != null) {
+				httpResponse.addHeader("Set-Cookie", header);
+			} else {
+				httpResponse.addCookie(addedCookie);
+			}
 		}
 		// send response
 		if (req.getTemplate() != null) {
-			VelocityContext ctx = new VelocityContext();
-			ctx.put("req", req);
-			for (String k : req.getModel().keySet()) {
-				ctx.put(k, req.getModel().get(k));
-			}
 			httpResponse.setContentType("text/html; charset=utf-8");
 			httpResponse.setCharacterEncoding("UTF-8");
-			PrintWriter out = httpResponse.getWriter();
-			velocityEngine.mergeTemplate(req.getTemplate(), "UTF-8", ctx, out);
-			out.flush();
+			OutputStream body = openBody(httpRequest, httpResponse, "text/html", -1);
+			renderTemplate(req, body);
+			Compression.finish(body);
 			httpResponse.flushBuffer();
 		} else if (req.getJson() != null) {
 			httpResponse.setContentType("application/json");
 			httpResponse.setCharacterEncoding("UTF-8");
-			ServletOutputStream out = httpResponse.getOutputStream();
 			byte[] data = req.getJson().getBytes(StandardCharsets.UTF_8);
+			OutputStream out = openBody(httpRequest, httpResponse, "application/json", data.length);
 			out.write(data);
-			out.flush();
+			Compression.finish(out);
+			httpResponse.flushBuffer();
+		} else if (req.getJsonBytes() != null) {
+			httpResponse.setContentType("application/json");
+			httpResponse.setCharacterEncoding("UTF-8");
+			ByteBuffer data = req.getJsonBytes().duplicate();
+			OutputStream out = openBody(httpRequest, httpResponse, "application/json", data.remaining());
+			writeBuffer(data, out);
+			Compression.finish(out);
+			httpResponse.flushBuffer();
+		} else if (req.getJsonWriter() != null) {
+			httpResponse.setContentType("application/json");
+			httpResponse.setCharacterEncoding("UTF-8");
+			OutputStream body = openBody(httpRequest, httpResponse, "application/json", -1);
+			TemplateWriter out = takeWriter(jsonWriters, null);
+			try {
+				out.reset(body);
+				req.getJsonWriter().write(out);
+				out.finish();
+			} finally {
+				jsonWriters.offer(out);
+			}
+			Compression.finish(body);
 			httpResponse.flushBuffer();
 		} else if (req.getContentBytes() != null) {
 			httpResponse.setContentType(req.getContentType());
 			httpResponse.setCharacterEncoding("UTF-8");
-			ServletOutputStream out = httpResponse.getOutputStream();
+			OutputStream out = openBody(httpRequest, httpResponse, req.getContentType(), req.getContentBytes().length);
 			out.write(req.getContentBytes());
-			out.flush();
+			Compression.finish(out);
 			httpResponse.flushBuffer();
+		} else if (req.getContentWriter() != null) {
+			sendContentWriter(req, httpRequest, httpResponse);
 		} else if (req.getDownloadFile() != null) {
-			ServletOutputStream out = httpResponse.getOutputStream();
-			File file = req.getDownloadFile();
-			if (file.isFile()) {
-				httpResponse.setContentType(req.getDownloadContentType());
-				if (req.isDownloadAsAttachment()) {
-					httpResponse.setHeader("Content-disposition", "attachment; filename=" + req.getDownloadName());
-				}
-				pipeFileToStream(file, out);
-				if (req.isDownloadDeleteAfterDownload()) {
-					boolean deleted = file.delete();
-					if (!deleted) {
-						logger.warn("could not delete download file " + file);
-					}
-				}
-			} else {
-				httpResponse.setStatus(404);
-				String content = "status 404: download file not found: \"" + file.getName() + "\"\r\n";
-				out.write(content.getBytes(StandardCharsets.UTF_8));
-			}
-			out.flush();
-			httpResponse.flushBuffer();
+			sendDownload(req, httpRequest, httpResponse);
+		} else if (req.getEventChannels() != null) {
+			sendEvents(req, httpRequest, httpResponse);
 		} else if (req.getRedirect() != null) {
 			httpResponse.sendRedirect(req.getRedirect());
 		} else if (req.getErrorStatus() != 0) {
@@ -165,11 +891,108 @@ public class WebbyServlet extends HttpServlet {
 			out.flush();
 			httpResponse.flushBuffer();
 		}
-		// report duration of this request
-		long t2 = System.nanoTime();
-		long millis = (t2 - t1) / 1_000_000L;
-		if (millis > 3000) {
-			logger.info(method + " " + path + " took " + millis + " ms");
+	}
+
+	private void sendEvents(WebRequestImpl req, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		httpResponse.setContentType("text/event-stream");
+		httpResponse.setCharacterEncoding("UTF-8");
+		httpResponse.setHeader("Cache-Control", "no-cache");
+		AsyncContext asyncContext;
+		if (httpRequest.isAsyncStarted()) {
+			// started by serveAsync, without a container timeout
+			asyncContext = httpRequest.getAsyncContext();
+		} else {
+			// still in the container dispatch, where the timeout can be set
+			asyncContext = httpRequest.startAsync(httpRequest, httpResponse);
+			asyncContext.setTimeout(0);
+		}
+		EventConnection connection = null;
+		try {
+			connection = new EventConnection(eventHub, req.getEventChannels(), asyncContext, httpResponse.getOutputStream(), eventQueueSize);
+			connection.open();
+		} catch (IOException | RuntimeException ex) {
+			// without a timeout, the response would never be completed
+			if (connection != null) {
+				connection.close();
+			} else {
+				asyncContext.complete();
+			}
+			throw ex;
+		}
+	}
+
+	private void sendContentWriter(WebRequestImpl req, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		String contentType = req.getContentType();
+		long length = req.getContentLength();
+		httpResponse.setContentType(contentType);
+		if (req.getContentAttachmentName() != null) {
+			httpResponse.setHeader("Content-disposition", "attachment; filename=" + req.getContentAttachmentName());
+		}
+		String encoding = compression != null ? compression.chooseEncoding(httpRequest, contentType, length) : null;
+		if (encoding == null && length >= 0) {
+			httpResponse.setContentLengthLong(length);
+		}
+		OutputStream body = compression != null ? compression.open(httpResponse, encoding) : httpResponse.getOutputStream();
+		// the content writer must not close the response stream, we finish it below
+		OutputStream out = new FilterOutputStream(body) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				body.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		};
+		req.getContentWriter().write(out);
+		Compression.finish(body);
+		httpResponse.flushBuffer();
+	}
+
+	private void writeBuffer(ByteBuffer data, OutputStream out) throws IOException {
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		byte[] buf = takePipeBuffer();
+		try {
+			while (data.hasRemaining()) {
+				int n = Math.min(buf.length, data.remaining());
+				data.get(buf, 0, n);
+				out.write(buf, 0, n);
+			}
+		} finally {
+			pipeBuffers.offer(buf);
+		}
+	}
+
+	private byte[] takePipeBuffer() {
+		byte[] buf = pipeBuffers.poll();
+		return buf != null ? buf : new byte[PIPE_BUFFER_SIZE];
+	}
+
+	private OutputStream openBody(HttpServletRequest httpRequest, HttpServletResponse httpResponse, String contentType, long length) throws IOException {
+		if (compression == null) {
+			return httpResponse.getOutputStream();
+		}
+		return compression.open(httpResponse, compression.chooseEncoding(httpRequest, contentType, length));
+	}
+
+	/**
+	 * Logs slow requests and records metrics. t1 is the start of the request,
+	 * t2 the end of serving it, i.e. the start of sending the response.
+	 */
+	private void endRequest(String method, String path, WebRequestImpl req, long t1, long t2, HttpServletResponse httpResponse) {
+		long t3 = System.nanoTime();
+		if (metrics != null && ((CountingResponse) httpResponse).markRecorded()) {
+			String route = req.getRoute() != null ? req.getRoute() : method + " " + path;
+			metrics.end(route, httpResponse.getStatus(), t2 - t1, t3 - t2, ((CountingResponse) httpResponse).getBytes());
+		}
+		long millis = (t3 - t1) / 1_000_000L;
+		if (millis > slowRequestMillis) {
+			logger.info(method + " " + path + " took " + millis + " ms (serve " + (t2 - t1) / 1_000_000L + " ms)");
 		} else {
 			if (logger.isDebugEnabled()) {
 				logger.debug(method + " " + path + " took " + millis + " ms");
@@ -177,17 +1000,235 @@ public class WebbyServlet extends HttpServlet {
 		}
 	}
 
-	private void pipeFileToStream(File file, ServletOutputStream out) throws IOException {
-		try (FileInputStream in = new FileInputStream(file)) {
-			pipeStreamtoStream(in, out);
+	private void sendDownload(WebRequestImpl req, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		File file = req.getDownloadFile();
+		if (!file.isFile()) {
+			httpResponse.setStatus(404);
+			String content = "status 404: download file not found: \"" + file.getName() + "\"\r\n";
+			ServletOutputStream out = httpResponse.getOutputStream();
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			httpResponse.flushBuffer();
+			return;
+		}
+		try {
+			// serve a precompressed sibling "file.gz", if there is one
+			File body = file;
+			String contentEncoding = null;
+			if (compression != null && !req.isDownloadDeleteAfterDownload()) {
+				httpResponse.addHeader("Vary", "Accept-Encoding");
+				if (Compression.accepts(httpRequest, Compression.GZIP)) {
+					File gz = new File(file.getPath() + ".gz");
+					if (gz.isFile() && gz.lastModified() >= file.lastModified()) {
+						body = gz;
+						contentEncoding = Compression.GZIP;
+					}
+				}
+			}
+			sendDownloadFile(req, body, contentEncoding, httpRequest, httpResponse);
+		} finally {
+			if (req.isDownloadDeleteAfterDownload()) {
+				boolean deleted = file.delete();
+				if (!deleted) {
+					logger.warn("could not delete download file " + file);
+				}
+			}
+		}
+	}
+
+	private void sendDownloadFile(WebRequestImpl req, File file, String contentEncoding, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException {
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (contentEncoding != null ? "-" + contentEncoding : "") + "\"";
+		boolean isGet = req.isGet();
+		// validators
+		httpResponse.setHeader("Accept-Ranges", "bytes");
+		httpResponse.setHeader("ETag", etag);
+		httpResponse.setDateHeader("Last-Modified", lastModified);
+		if (isGet && isNotModified(httpRequest, etag, lastModified)) {
+			httpResponse.setStatus(304);
+			httpResponse.flushBuffer();
+			return;
+		}
+		if (req.isDownloadAsAttachment()) {
+			httpResponse.setHeader("Content-disposition", "attachment; filename=" + req.getDownloadName());
+		}
+		if (contentEncoding != null) {
+			httpResponse.setHeader("Content-Encoding", contentEncoding);
+		}
+		// ranges
+		List<ByteRange> ranges = null;
+		String rangeHeader = httpRequest.getHeader("Range");
+		if (isGet && rangeHeader != null && isRangeApplicable(httpRequest, etag, lastModified)) {
+			ranges = ByteRange.parse(rangeHeader, length);
+			if (ranges != null && ranges.size() > MAX_RANGES) {
+				ranges = null;
+			}
+		}
+		if (ranges != null && ranges.isEmpty()) {
+			httpResponse.setStatus(416);
+			httpResponse.setHeader("Content-Range", "bytes */" + length);
+			httpResponse.flushBuffer();
+			return;
+		}
+		if (ranges != null && ranges.size() > 1) {
+			sendMultipleRanges(req, file, length, lastModified, ranges, httpResponse);
+			return;
+		}
+		long start = 0;
+		long count = length;
+		if (ranges != null) {
+			ByteRange range = ranges.get(0);
+			start = range.start;
+			count = range.getLength();
+			httpResponse.setStatus(206);
+			httpResponse.setHeader("Content-Range", range.toContentRange(length));
+		}
+		httpResponse.setContentType(req.getDownloadContentType());
+		httpResponse.setContentLengthLong(count);
+		// let the container send the file with sendfile(2), if supported.
+		// files that are deleted after download cannot be handed over,
+		// since the container sends them after this method has returned.
+		if (!req.isDownloadDeleteAfterDownload() && Boolean.TRUE.equals(httpRequest.getAttribute(SENDFILE_SUPPORT))) {
+			httpRequest.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+			httpRequest.setAttribute(SENDFILE_START, Long.valueOf(start));
+			httpRequest.setAttribute(SENDFILE_END, Long.valueOf(start + count));
+			return;
+		}
+		MappedFileCache.Mapping mapping = acquireMapping(req, file, length, lastModified);
+		try {
+			ServletOutputStream out = httpResponse.getOutputStream();
+			writeFile(file, mapping, start, count, out);
+			out.flush();
+			httpResponse.flushBuffer();
+		} finally {
+			if (mapping != null) {
+				mapping.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns the shared mapping of a download file, or null if it is to be read from disk.
+	 * Files that are deleted after download are never mapped.
+	 */
+	private MappedFileCache.Mapping acquireMapping(WebRequestImpl req, File file, long length, long lastModified) throws IOException {
+		if (mappedFiles == null || req.isDownloadDeleteAfterDownload()) {
+			return null;
+		}
+		return mappedFiles.acquire(file, length, lastModified);
+	}
+
+	private void writeFile(File file, MappedFileCache.Mapping mapping, long start, long count, ServletOutputStream out) throws IOException {
+		if (mapping != null) {
+			writeBuffer(mapping.slice(start, count), out);
+		} else {
+			pipeFileToStream(file, start, count, out);
 		}
 	}
 
-	private void pipeStreamtoStream(FileInputStream in, ServletOutputStream out) throws IOException {
-		byte[] buf = new byte[1024];
-		int c;
-		while ((c = in.read(buf)) > 0) {
-			out.write(buf, 0, c);
+	private void sendMultipleRanges(WebRequestImpl req, File file, long length, long lastModified, List<ByteRange> ranges, HttpServletResponse httpResponse) throws IOException {
+		String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+		String contentType = req.getDownloadContentType();
+		List<byte[]> partHeaders = new ArrayList<>();
+		long contentLength = 0;
+		for (ByteRange range : ranges) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("\r\n--").append(boundary).append("\r\n");
+			if (contentType != null) {
+				sb.append("Content-Type: ").append(contentType).append("\r\n");
+			}
+			sb.append("Content-Range: ").append(range.toContentRange(length)).append("\r\n\r\n");
+			byte[] partHeader = sb.toString().getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(partHeader);
+			contentLength += partHeader.length + range.getLength();
+		}
+		byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += trailer.length;
+		httpResponse.setStatus(206);
+		httpResponse.setContentType("multipart/byteranges; boundary=" + boundary);
+		httpResponse.setContentLengthLong(contentLength);
+		MappedFileCache.Mapping mapping = acquireMapping(req, file, length, lastModified);
+		try {
+			ServletOutputStream out = httpResponse.getOutputStream();
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange range = ranges.get(i);
+				out.write(partHeaders.get(i));
+				writeFile(file, mapping, range.start, range.getLength(), out);
+			}
+			out.write(trailer);
+			out.flush();
+			httpResponse.flushBuffer();
+		} finally {
+			if (mapping != null) {
+				mapping.release();
+			}
+		}
+	}
+
+	private boolean isNotModified(HttpServletRequest httpRequest, String etag, long lastModified) {
+		String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return matchesETag(ifNoneMatch, etag);
+		}
+		long ifModifiedSince = getDateHeader(httpRequest, "If-Modified-Since");
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	private boolean isRangeApplicable(HttpServletRequest httpRequest, String etag, long lastModified) {
+		String ifRange = httpRequest.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(etag);
+		}
+		long date = getDateHeader(httpRequest, "If-Range");
+		return date >= 0 && lastModified / 1000 == date / 1000;
+	}
+
+	private boolean matchesETag(String header, String etag) {
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long getDateHeader(HttpServletRequest httpRequest, String name) {
+		try {
+			return httpRequest.getDateHeader(name);
+		} catch (IllegalArgumentException ex) {
+			return -1;
+		}
+	}
+
+	private void pipeFileToStream(File file, long start, long count, ServletOutputStream out) throws IOException {
+		byte[] buf = takePipeBuffer();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer bb = ByteBuffer.wrap(buf);
+			long position = start;
+			long remaining = count;
+			while (remaining > 0) {
+				bb.clear();
+				if (remaining < bb.capacity()) {
+					bb.limit((int) remaining);
+				}
+				int c = channel.read(bb, position);
+				if (c < 0) {
+					break;
+				}
+				out.write(buf, 0, c);
+				position += c;
+				remaining -= c;
+			}
+		} finally {
+			pipeBuffers.offer(buf);
 		}
 	}
 